@@ -0,0 +1,41 @@
+package org.crazydays;
+
+import org.crazydays.stl.Facet;
+import org.crazydays.stl.FacetSink;
+import org.crazydays.stl.Vertex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetBenchmark {
+    private float x = 1.0f;
+    private float y = 2.0f;
+    private float z = 3.0f;
+    private FacetSink sink;
+
+    @Setup
+    public void setupSink(Blackhole blackhole) {
+        sink = (nx, ny, nz, ax, ay, az, bx, by, bz, cx, cy, cz, attributeByteCount) -> {
+            blackhole.consume(nx);
+            blackhole.consume(ny);
+            blackhole.consume(nz);
+        };
+    }
+
+    @Benchmark
+    public Facet facet() {
+        return new Facet(new Vertex(x, y, z), new Vertex(y, z, x), new Vertex(z, x, y), 0);
+    }
+
+    @Benchmark
+    public void triangle() {
+        sink.addTriangle(x, y, z, y, z, x, z, x, y);
+    }
+}
@@ -0,0 +1,54 @@
+package org.crazydays;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageBenchmark {
+    @Param({"200x400", "1000x2000", "2000x4000"})
+    public String size;
+
+    @Param({"0.1", "0.5"})
+    public double density;
+
+    private File imageFile;
+    private ImageMask mask;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        imageFile = File.createTempFile("blanker", ".png");
+        ImageIO.write(SyntheticImages.create(size, density), "png", imageFile);
+        mask = SyntheticImages.mask(size, density);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        imageFile.delete();
+    }
+
+    @Benchmark
+    public Blanker loadImage() {
+        BlankConfiguration configuration = SyntheticImages.configuration(size, 0.0f, 0.0f);
+        configuration.setImageFilename(imageFile.getPath());
+        Blanker blanker = new Blanker(configuration, "benchmark.stl");
+        blanker.loadImage();
+        return blanker;
+    }
+
+    @Benchmark
+    public Blanker generateXYDimensions() {
+        Blanker blanker = new Blanker(SyntheticImages.configuration(size, 0.0f, 0.0f), "benchmark.stl");
+        blanker.setImageMask(mask);
+        blanker.generateXYDimensions();
+        return blanker;
+    }
+}
@@ -0,0 +1,63 @@
+package org.crazydays;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputBenchmark {
+    @Param({"200x400", "1000x2000"})
+    public String size;
+
+    @Param({"0.1", "0.5"})
+    public double density;
+
+    private File outputFile;
+    private ImageMask mask;
+    private Blanker blanker;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        outputFile = File.createTempFile("blanker", ".stl");
+        blanker = new Blanker(SyntheticImages.configuration(size, 0.0f, 0.0f), outputFile.getPath());
+        mask = SyntheticImages.mask(size, density);
+        blanker.setImageMask(mask);
+        blanker.generateStl();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        return blanker.getBlank().getBytes();
+    }
+
+    // a blanker writes its output once, so every invocation gets a freshly generated one
+    @State(Scope.Thread)
+    public static class Generated {
+        private Blanker blanker;
+
+        @Setup(Level.Invocation)
+        public void setup(OutputBenchmark benchmark) {
+            blanker = new Blanker(SyntheticImages.configuration(benchmark.size, 0.0f, 0.0f), benchmark.outputFile.getPath());
+            blanker.setImageMask(benchmark.mask);
+            blanker.generateStl();
+        }
+    }
+
+    @Benchmark
+    public Blanker writeStl(Generated generated) {
+        generated.blanker.writeStl();
+        return generated.blanker;
+    }
+}
@@ -0,0 +1,66 @@
+package org.crazydays;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RoundMoldBenchmark {
+    @Param({"200x400", "1000x2000"})
+    public String size;
+
+    @Param({"0.1", "0.5"})
+    public double density;
+
+    @Param({"0.5", "1.0", "2.0"})
+    public float wallThickness;
+
+    private ImageMask mask;
+    private Blanker blanker;
+    private Blanker dilated;
+
+    @Setup(Level.Trial)
+    public void setupMask() {
+        mask = SyntheticImages.mask(size, density);
+        dilated = create();
+        dilated.generateWallThicknessMask();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupBlanker() {
+        blanker = create();
+    }
+
+    private Blanker create() {
+        Blanker blanker = new Blanker(SyntheticImages.configuration(size, SyntheticImages.ROUND_MOLD, wallThickness), "benchmark.stl");
+        blanker.setImageMask(mask);
+        blanker.generateXYDimensions();
+        blanker.openSink();
+        return blanker;
+    }
+
+    @Benchmark
+    public Blank generateRoundMold() {
+        blanker.generateWallThicknessMask();
+        blanker.generateRoundMold(blanker.getBlank());
+        return blanker.getBlank();
+    }
+
+    @Benchmark
+    public int isWithinWallThickness() {
+        int count = 0;
+        for (int x = 0; x < mask.getWidth(); x++) {
+            for (int y = 0; y < mask.getHeight(); y++) {
+                if (dilated.isWithinWallThickness(x, y)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
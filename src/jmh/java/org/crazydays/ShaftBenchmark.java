@@ -0,0 +1,45 @@
+package org.crazydays;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShaftBenchmark {
+    @Param({"200x400", "1000x2000", "2000x4000"})
+    public String size;
+
+    @Param({"0.1", "0.5"})
+    public double density;
+
+    @Param({"false", "true"})
+    public boolean merge;
+
+    private ImageMask mask;
+    private Blanker blanker;
+
+    @Setup(Level.Trial)
+    public void setupMask() {
+        mask = SyntheticImages.mask(size, density);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupBlanker() {
+        blanker = new Blanker(SyntheticImages.configuration(size, 0.0f, 0.0f), "benchmark.stl");
+        blanker.setImageMask(mask);
+        blanker.setMerge(merge);
+        blanker.generateXYDimensions();
+        blanker.openSink();
+    }
+
+    @Benchmark
+    public Blank generateShaft() {
+        blanker.generateShaft(blanker.getBlank());
+        return blanker.getBlank();
+    }
+}
@@ -0,0 +1,57 @@
+package org.crazydays;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/*
+ * Seeded engraving-like test images: every row alternates runs of black and white pixels so that
+ * roughly the requested fraction of the image is black.
+ */
+final class SyntheticImages {
+    final static float TUBE = 7.0f;
+    final static float DIAMETER = 19.0f;
+    final static float IMAGE_ZERO = 2.0f;
+    final static float ROUND_MOLD = 30.0f;
+    final static int MEAN_RUN = 20;
+
+    private SyntheticImages() {
+    }
+
+    static int width(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int height(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    static BufferedImage create(String size, double density) {
+        BufferedImage image = new BufferedImage(width(size), height(size), BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(size.hashCode() * 31L + Double.hashCode(density));
+        double whiteRun = MEAN_RUN * (1.0 - density) / density;
+        for (int y = 0; y < image.getHeight(); y++) {
+            boolean black = random.nextDouble() < density;
+            int x = 0;
+            while (x < image.getWidth()) {
+                int run = 1 + (int) (-Math.log(1.0 - random.nextDouble()) * (black ? MEAN_RUN : whiteRun));
+                for (int end = Math.min(image.getWidth(), x + run); x < end; x++) {
+                    image.setRGB(x, y, black ? 0xff000000 : 0xffffffff);
+                }
+                black = !black;
+            }
+        }
+        return image;
+    }
+
+    static ImageMask mask(String size, double density) {
+        return ImageMask.fromImage(create(size, density), ImageMask.DEFAULT_THRESHOLD);
+    }
+
+    // long enough for every image column to be engraved
+    static BlankConfiguration configuration(String size, float roundMold, float wallThickness) {
+        float length = IMAGE_ZERO + (width(size) + 2) * Blanker.Z_STEP;
+        BlankConfiguration configuration = new BlankConfiguration(Units.MILLIMETERS, length, TUBE, DIAMETER, true, 0.0f, roundMold, 0.0f, true, wallThickness);
+        configuration.setImageZero(IMAGE_ZERO);
+        return configuration;
+    }
+}
@@ -0,0 +1,298 @@
+package org.crazydays;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs every job of a CSV manifest in one JVM. The header row names the blanker options (long
+ * names without the dashes), every following row is one job and empty cells keep the defaults.
+ * Cells holding commas are quoted, with "" for a quote inside them.
+ */
+public class Batch {
+    public final static String COMMAND = "batch";
+
+    private final List<Job> jobs;
+    private final int workers;
+    private final Map<String, CompletableFuture<ImageMask>> masks;
+    private final Map<String, AtomicInteger> remaining;
+    private final AtomicInteger next;
+    private ExecutorService decoder;
+
+    public Batch(List<Job> jobs, int workers) {
+        this.jobs = jobs;
+        this.workers = Math.max(1, workers);
+        this.masks = new ConcurrentHashMap<>();
+        this.remaining = new ConcurrentHashMap<>();
+        this.next = new AtomicInteger();
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("blanker batch").build().defaultHelp(true).description("Generate every blank listed in a CSV manifest");
+        parser.addArgument("manifest").type(String.class).help("CSV manifest, one job per row");
+        parser.addArgument("--workers").type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors()).help("Concurrent jobs");
+
+        Namespace ns = null;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        }
+
+        List<Job> jobs;
+        try {
+            jobs = readManifest(new File(ns.getString("manifest")));
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+
+        Batch batch = new Batch(jobs, ns.getInt("workers"));
+        batch.run();
+        if (batch.printSummary() > 0) {
+            System.exit(1);
+        }
+    }
+
+    static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String[] columns = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] cells = cells(line);
+                if (columns == null) {
+                    columns = cells;
+                    continue;
+                }
+
+                List<String> args = new ArrayList<>();
+                for (int i = 0; i < columns.length && i < cells.length; i++) {
+                    if (!cells[i].trim().isEmpty()) {
+                        args.add("--" + columns[i].trim());
+                        args.add(cells[i].trim());
+                    }
+                }
+                jobs.add(new Job(jobs.size(), args.toArray(new String[0])));
+            }
+        }
+        return jobs;
+    }
+
+    static String[] cells(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    cell.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells.toArray(new String[0]);
+    }
+
+    public void run() {
+        for (Job job : jobs) {
+            job.parse(workers);
+            if (job.key != null) {
+                remaining.computeIfAbsent(job.key, key -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+
+        decoder = Executors.newFixedThreadPool(workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                pool.submit(this::work);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            decoder.shutdownNow();
+        }
+    }
+
+    private void work() {
+        int index;
+        while ((index = next.getAndIncrement()) < jobs.size()) {
+            if (index + 1 < jobs.size()) {
+                mask(jobs.get(index + 1));
+            }
+            run(jobs.get(index));
+        }
+    }
+
+    /*
+     * Decoded images are shared between jobs and dropped once their last job is done. Counting down
+     * and dropping happen under the same key as decoding, so a late prefetch of a finished image
+     * does not decode it again.
+     */
+    private CompletableFuture<ImageMask> mask(Job job) {
+        // a finished job has let go of its blanker
+        Blanker blanker = job.blanker;
+        if (job.key == null || blanker == null) {
+            return null;
+        }
+        return masks.compute(job.key, (key, mask) -> mask != null || remaining.get(key).get() == 0 ? mask : CompletableFuture.supplyAsync(() -> {
+            try {
+                return blanker.readImageMask();
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getLocalizedMessage(), e);
+            }
+        }, decoder));
+    }
+
+    private void done(Job job) {
+        if (job.key != null) {
+            masks.compute(job.key, (key, mask) -> remaining.get(key).decrementAndGet() == 0 ? null : mask);
+        }
+    }
+
+    private void run(Job job) {
+        long start = System.nanoTime();
+        try {
+            if (job.error != null) {
+                return;
+            }
+
+            job.blanker.setImageMask(mask(job).get());
+            job.blanker.generateStl();
+            job.blanker.writeStl();
+            if (!job.blanker.isWritten()) {
+                job.error = "Output not written";
+                return;
+            }
+            job.facets = job.blanker.getFacetCount();
+            if (job.blanker.getValidator() != null && !job.blanker.isVerified()) {
+                job.error = "Mesh not valid";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.error = e.toString();
+        } catch (ExecutionException e) {
+            job.error = e.getCause().getLocalizedMessage();
+        } catch (RuntimeException e) {
+            job.error = e.toString();
+        } finally {
+            job.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            done(job);
+            // the summary only needs the counts, the mesh and mask go with the blanker
+            job.blanker = null;
+        }
+    }
+
+    // the number of failed jobs
+    public int printSummary() {
+        long totalMillis = 0;
+        long totalFacets = 0;
+        int failed = 0;
+
+        System.out.format("Batch summary\n");
+        for (Job job : jobs) {
+            if (job.error != null) {
+                failed++;
+                System.out.format("\t%d\t%s\tFAILED: %s\n", job.index, job.output, job.error);
+            } else {
+                System.out.format("\t%d\t%s\t%d facets\t%d ms\n", job.index, job.output, job.facets, job.millis);
+            }
+            totalMillis += job.millis;
+            totalFacets += job.facets;
+        }
+        System.out.format("\tJobs: %d Failed: %d Facets: %d Job time: %d ms\n", jobs.size(), failed, totalFacets, totalMillis);
+        return failed;
+    }
+
+    static class Job {
+        private final int index;
+        private final String[] args;
+        private BlankConfiguration blankConfiguration;
+        private Blanker blanker;
+        private String key;
+        private String output;
+        private int facets;
+        private long millis;
+        private String error;
+
+        Job(int index, String[] args) {
+            this.index = index;
+            this.args = args;
+            this.output = "-";
+        }
+
+        String[] getArgs() {
+            return args;
+        }
+
+        // null once the job has run
+        Blanker getBlanker() {
+            return blanker;
+        }
+
+        int getFacets() {
+            return facets;
+        }
+
+        // null once the output is written
+        String getError() {
+            return error;
+        }
+
+        // workers jobs share the heap
+        void parse(int workers) {
+            try {
+                Namespace ns = Main.createParser("blanker").parseArgs(args);
+                blanker = Main.createBlanker(ns, false, workers);
+                blankConfiguration = blanker.getBlankConfiguration();
+                output = ns.getString("output");
+                if (ns.getString("image") == null) {
+                    error = "No image";
+                } else {
+                    key = blanker.imageKey();
+                }
+            } catch (ArgumentParserException e) {
+                error = e.getMessage();
+            }
+        }
+    }
+}
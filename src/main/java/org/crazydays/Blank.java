@@ -1,35 +1,92 @@
 package org.crazydays;
 
-import org.crazydays.stl.Facet;
+import org.crazydays.stl.FacetBuffer;
+import org.crazydays.stl.FacetSink;
 import org.crazydays.stl.Header;
+import org.crazydays.stl.StlWriter;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-public class Blank {
+public class Blank implements FacetSink {
     private Header header;
-    private List<Facet> facets;
+    private final List<FacetBuffer> parts;
+    private FacetBuffer facets;
+    private int size;
 
     public Blank() {
-        this.facets = new LinkedList<>();
+        this.parts = new ArrayList<>();
+        this.facets = new FacetBuffer();
+        this.parts.add(facets);
     }
 
     public void setHeader(Header header) {
         this.header = header;
     }
 
-    public void addFacet(Facet facet) {
-        this.facets.add(facet);
+    public Header getHeader() {
+        return header;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * The mesh in order, appended buffers are kept as their own parts instead of being copied.
+     */
+    public List<FacetBuffer> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        facets.addFacet(nx, ny, nz, ax, ay, az, bx, by, bz, cx, cy, cz, attributeByteCount);
+        size++;
+    }
+
+    @Override
+    public void addFacets(FacetBuffer buffer) {
+        parts.add(buffer);
+        facets = new FacetBuffer();
+        parts.add(facets);
+        size += buffer.size();
+    }
+
+    public long getByteCount() {
+        return StlWriter.HEADER_SIZE + 4 + (long) StlWriter.FACET_SIZE * size;
+    }
+
+    // the same bytes as getBytes, encoded a chunk at a time
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(StlWriter.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header.getBytes());
+        buffer.putInt(size);
+        for (FacetBuffer part : parts) {
+            for (int i = 0; i < part.size(); i++) {
+                if (buffer.remaining() < StlWriter.FACET_SIZE) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                part.write(buffer, i);
+            }
+        }
+        out.write(buffer.array(), 0, buffer.position());
     }
 
     public byte[] getBytes() {
-        ByteBuffer buffer =  ByteBuffer.allocate(80 + 4 + (50 * facets.size())).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer buffer =  ByteBuffer.allocate(80 + 4 + (50 * size)).order(ByteOrder.LITTLE_ENDIAN);
         buffer.put(header.getBytes());
-        buffer.putInt(facets.size());
-        for (Facet facet : facets) {
-            buffer.put(facet.getBytes());
+        buffer.putInt(size);
+        for (FacetBuffer part : parts) {
+            for (int i = 0; i < part.size(); i++) {
+                part.write(buffer, i);
+            }
         }
         return buffer.array();
     }
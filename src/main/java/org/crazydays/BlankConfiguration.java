@@ -15,6 +15,10 @@ public class BlankConfiguration {
     private float wallThickness;
     private float imageZero;
     private String imageFilename;
+    private int threshold = ImageMask.DEFAULT_THRESHOLD;
+    private int levels = ImageMask.BINARY_LEVELS;
+    private int rotationSteps;
+    private float zStep = Blanker.Z_STEP;
 
     public BlankConfiguration(Units units, float length, float tube, float diameter, boolean center, float funnel, float roundMold, float squareMold, boolean positive, float wallThickness) {
         this.units = units;
@@ -129,4 +133,44 @@ public class BlankConfiguration {
     public File getImageFile() {
         return new File(imageFilename);
     }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    // relief depths from the tube to the diameter, 2 is black image on the tube
+    public void setLevels(int levels) {
+        this.levels = levels;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    // 0 takes the rotation steps from the image height
+    public void setRotationSteps(int rotationSteps) {
+        if (rotationSteps < 0) {
+            throw new IllegalArgumentException(String.format("Rotation steps must not be negative: %d", rotationSteps));
+        }
+        this.rotationSteps = rotationSteps;
+    }
+
+    public int getRotationSteps() {
+        return rotationSteps;
+    }
+
+    public void setZStep(float zStep) {
+        if (!(zStep > 0.0f) || Float.isInfinite(zStep)) {
+            throw new IllegalArgumentException(String.format("Z step must be a finite number above 0: %s", zStep));
+        }
+        this.zStep = zStep;
+    }
+
+    public float getZStep() {
+        return zStep;
+    }
 }
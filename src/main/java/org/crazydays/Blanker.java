@@ -1,15 +1,39 @@
 package org.crazydays;
 
-import org.crazydays.stl.Facet;
+import org.crazydays.mesh.IndexedMesh;
+import org.crazydays.mesh.MeshValidator;
+import org.crazydays.mesh.ObjWriter;
+import org.crazydays.mesh.PlyWriter;
+import org.crazydays.mesh.ThreeMfWriter;
+import org.crazydays.stl.CompressedStlWriter;
+import org.crazydays.stl.FacetBuffer;
+import org.crazydays.stl.FacetSink;
 import org.crazydays.stl.Header;
-import org.crazydays.stl.Vertex;
+import org.crazydays.stl.MappedStlWriter;
+import org.crazydays.stl.StlReader;
+import org.crazydays.stl.StlWriter;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.IntUnaryOperator;
 
 public class Blanker {
     public final static float Z_STEP = 0.05f;
+    public final static int SLABS_PER_THREAD = 4;
+    public final static int CACHE_VERSION = 4;
+
+    public final static int DRAFT_ROTATION_STEPS = 120;
+    public final static float DRAFT_Z_STEP = 0.25f;
 
     public final static float MOLD_THICKNESS = 2.0f;
     public final static float MOLD_BOTTOM_PADDING = 5.0f;
@@ -21,10 +45,42 @@ public class Blanker {
 
     private final BlankConfiguration blankConfiguration;
     private final Blank blank;
-
-    private BufferedImage image;
+    private final Header header;
+
+    private boolean streaming;
+    private boolean mapped;
+    private FacetSink sink;
+    private int threads = 1;
+    private boolean merge;
+    private boolean draft;
+
+    private final Metrics metrics = new Metrics();
+    private File metricsFile;
+    private boolean written;
+    private boolean verify;
+    private MeshValidator validator;
+    private File verifyBaseline;
+    private boolean recordBaseline;
+    private boolean verified;
+
+    private MeshCache cache;
+    private String cacheKey;
+    private String maskKey;
+    private int cachedFacets = -1;
+    private long memoryBudget;
+    private Plan plan;
+    private ShardWriter.Mode shardMode;
+    private int shardFacets;
+    private final List<ShardWriter.Range> sectionRanges = new ArrayList<>();
+    private List<ShardWriter.Shard> shards;
+    private ForkJoinPool rowPool;
+
+    private ImageMask mask;
+    private ImageMask wallThicknessMask;
 
     private final String outputFilename;
+    private final OutputFormat outputFormat;
+    private IndexedMesh indexedMesh;
 
     private float[] tubeX;
     private float[] tubeY;
@@ -38,42 +94,740 @@ public class Blanker {
     private float[] wallThicknessTubeY;
     private float[] wallThicknessImageX;
     private float[] wallThicknessImageY;
+    private float[][] levelX;
+    private float[][] levelY;
 
     public Blanker(BlankConfiguration blankConfiguration, String outputFilename) {
         this.blankConfiguration = blankConfiguration;
         this.blank = new Blank();
-        this.blank.setHeader(new Header("Blanker", outputFilename));
+        this.header = new Header("Blanker", outputFilename);
+        this.blank.setHeader(header);
         this.outputFilename = outputFilename;
+        this.outputFormat = OutputFormat.forFilename(outputFilename);
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setMerge(boolean merge) {
+        this.merge = merge;
+    }
+
+    /*
+     * Draft trades image detail for speed: at most DRAFT_ROTATION_STEPS rotations, z steps of at
+     * least DRAFT_Z_STEP and merged facets. Radii and length still come from the configuration so
+     * the outer dimensions match the final export.
+     */
+    public void setDraft(boolean draft) {
+        this.draft = draft;
+        if (draft) {
+            this.merge = true;
+        }
+    }
+
+    /*
+     * Heap in bytes the planned peak has to fit in, beyond it plain STL is streamed and every other
+     * output is merged. 0 generates as configured.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    // null unless a memory budget was set
+    public Plan getPlan() {
+        return plan;
+    }
+
+    // null writes a single file
+    public void setShards(ShardWriter.Mode shardMode, int shardFacets) {
+        this.shardMode = shardMode;
+        this.shardFacets = shardFacets;
+    }
+
+    // null unless the mesh was written as shards
+    public List<ShardWriter.Shard> getShards() {
+        return shards;
+    }
+
+    public void setCache(MeshCache cache) {
+        this.cache = cache;
+    }
+
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    // defect counts the verified mesh may not exceed, a missing one is only written for a valid mesh
+    public void setVerifyBaseline(File verifyBaseline) {
+        this.verifyBaseline = verifyBaseline;
+    }
+
+    // overwrite the baseline with this mesh's defects, valid or not
+    public void setRecordBaseline(boolean recordBaseline) {
+        this.recordBaseline = recordBaseline;
+    }
+
+    // false until the output or the cached copy is on disk, also when writing it failed
+    public boolean isWritten() {
+        return written;
+    }
+
+    // null unless the written file has been verified
+    public MeshValidator getValidator() {
+        return validator;
+    }
+
+    // the verified mesh is valid, or has no more defects than the baseline
+    public boolean isVerified() {
+        return verified;
+    }
+
+    // false when loadImage could not read the image
+    public boolean isImageLoaded() {
+        return mask != null;
     }
 
     public void loadImage() {
+        phase("loadImage", () -> {
+            try {
+                mask = readImageMask();
+                System.out.format("image height: %d width: %d\n", mask.getHeight(), mask.getWidth());
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getLocalizedMessage());
+            }
+        });
+    }
+
+    private void phase(String name, Runnable body) {
+        Metrics.Phase phase = metrics.start(name, getFacetCount(), bytesWritten());
         try {
-            image = ImageIO.read(blankConfiguration.getImageFile());
-            System.out.format("image height: %d width: %d\n", image.getHeight(), image.getWidth());
-        } catch (IOException e) {
-            System.err.println("IOException: " + e.getLocalizedMessage());
+            body.run();
+        } finally {
+            metrics.end(phase, getFacetCount(), bytesWritten());
         }
     }
 
+    private long bytesWritten() {
+        if (sink instanceof StlWriter) {
+            return ((StlWriter) sink).getBytesWritten();
+        }
+        if (sink instanceof CompressedStlWriter) {
+            return ((CompressedStlWriter) sink).getBytesWritten();
+        }
+        if (sink instanceof MappedStlWriter) {
+            return ((MappedStlWriter) sink).getBytesWritten();
+        }
+        if (shards != null) {
+            long bytes = 0;
+            for (ShardWriter.Shard shard : shards) {
+                bytes += shard.getFile().length();
+            }
+            return bytes;
+        }
+        return written ? new File(outputFilename).length() : 0;
+    }
+
+    /*
+     * Raster images are decoded at their own size and resampled later, SVG is scan converted at the
+     * rotation x z grid directly.
+     */
+    ImageMask readImageMask() throws IOException {
+        File file = blankConfiguration.getImageFile();
+        if (!SvgRasterizer.isSvg(file)) {
+            return ImageMask.read(file, blankConfiguration.getThreshold(), blankConfiguration.getLevels());
+        }
+        SvgRasterizer svg = SvgRasterizer.read(file);
+        int rows = targetRotations((int) Math.max(1, Math.round(svg.getHeight())));
+        int columns = targetColumns((int) Math.max(1, Math.round(svg.getWidth())), Z_STEP);
+        return svg.rasterize(columns, rows, zStep(), blankConfiguration.getThreshold());
+    }
+
+    // masks are shared between blanks that would read the same bits
+    String imageKey() {
+        File file = blankConfiguration.getImageFile();
+        if (SvgRasterizer.isSvg(file)) {
+            return String.format("%s:%d:%s:%b:%d", file.getAbsolutePath(), blankConfiguration.getRotationSteps(), zStep(), draft, blankConfiguration.getThreshold());
+        }
+        return String.format("%s:%d:%d", file.getAbsolutePath(), blankConfiguration.getThreshold(), blankConfiguration.getLevels());
+    }
+
+    public BlankConfiguration getBlankConfiguration() {
+        return blankConfiguration;
+    }
+
+    public void setImageMask(ImageMask mask) {
+        this.mask = mask;
+    }
+
     public void generateStl() {
+        phase("resampleImage", this::resampleImage);
         System.out.format("rotation_steps: %d\n", rotationSteps());
 
-        generateXYDimensions();
+        if (memoryBudget > 0) {
+            phase("plan", this::applyPlan);
+        }
+
+        if (cache != null && outputFormat == OutputFormat.STL && shardMode == null) {
+            phase("fetchCached", () -> written = fetchCached());
+            if (written) {
+                return;
+            }
+        }
+
+        if (!openSink()) {
+            return;
+        }
 
+        phase("generateXYDimensions", this::generateXYDimensions);
+
+        List<Section> sections = new ArrayList<>();
         if (blankConfiguration.isSquareMold()) {
-            generateSquareMold();
+            sections.add(new Section("generateSquareMold", out -> {
+                out.writeFloat(blankConfiguration.getSquareMold());
+                out.writeFloat(length());
+                out.writeBoolean(isFunnel());
+            }, this::generateSquareMold));
         }
 
         if (blankConfiguration.isRoundMold()) {
-            generateRoundMold();
+            sections.add(new Section("generateRoundMold", out -> {
+                out.writeUTF(maskKey());
+                out.writeFloat(tubeRadius());
+                out.writeFloat(imageRadius());
+                out.writeFloat(funnelRadius());
+                out.writeFloat(roundMoldRadius());
+                out.writeFloat(wallThickness());
+                out.writeBoolean(blankConfiguration.isCenter());
+                out.writeFloat(imageZero());
+                out.writeFloat(length());
+                out.writeFloat(zStep());
+                out.writeBoolean(merge);
+            }, sink -> {
+                if (wallThicknessMask == null) {
+                    generateWallThicknessMask();
+                }
+                generateRoundMold(sink);
+            }));
+        }
+
+        sections.add(new Section("generateTop", out -> {
+            out.writeInt(rotationSteps());
+            out.writeFloat(tubeRadius());
+            out.writeFloat(blankConfiguration.getSquareMold());
+            out.writeBoolean(blankConfiguration.isCenter());
+            out.writeBoolean(blankConfiguration.isRoundMold());
+        }, this::generateTop));
+
+        sections.add(new Section("generateShaft", out -> {
+            out.writeUTF(maskKey());
+            out.writeFloat(tubeRadius());
+            out.writeFloat(imageRadius());
+            out.writeFloat(blankConfiguration.getSquareMold());
+            out.writeFloat(imageZero());
+            out.writeFloat(length());
+            out.writeFloat(zStep());
+            out.writeBoolean(merge);
+        }, this::generateShaft));
+
+        sections.add(new Section("generateBottom", out -> {
+            out.writeInt(rotationSteps());
+            out.writeFloat(tubeRadius());
+            out.writeFloat(imageRadius());
+            out.writeFloat(funnelRadius());
+            out.writeFloat(blankConfiguration.getSquareMold());
+            out.writeFloat(length());
+        }, this::generateBottom));
+
+        generateSections(sections);
+    }
+
+    /*
+     * Rotation steps times the larger of the resampled image columns and the z steps along the
+     * length, from the image header alone. The rings, masks and rows all grow with it.
+     */
+    public long gridCellsFromHeader() throws IOException {
+        File file = blankConfiguration.getImageFile();
+        int height;
+        int width;
+        if (SvgRasterizer.isSvg(file)) {
+            SvgRasterizer svg = SvgRasterizer.read(file);
+            height = (int) Math.max(1, Math.round(svg.getHeight()));
+            width = (int) Math.max(1, Math.round(svg.getWidth()));
+        } else {
+            Dimension size = ImageMask.readSize(file);
+            height = size.height;
+            width = size.width;
+        }
+        long rows = (long) Math.ceil(length() / zStep());
+        return (long) targetRotations(height) * Math.max(targetColumns(width, Z_STEP), rows);
+    }
+
+    /*
+     * The plan of this blank from the image header alone, nothing is decoded or generated.
+     */
+    public Plan planFromHeader() throws IOException {
+        File file = blankConfiguration.getImageFile();
+        if (SvgRasterizer.isSvg(file)) {
+            SvgRasterizer svg = SvgRasterizer.read(file);
+            int rotations = targetRotations((int) Math.max(1, Math.round(svg.getHeight())));
+            int columns = targetColumns((int) Math.max(1, Math.round(svg.getWidth())), Z_STEP);
+            return plan(rotations, columns, ImageMask.BINARY_LEVELS, 0, ImageMask.bytes(columns, rotations, ImageMask.BINARY_LEVELS), -1, -1);
+        }
+
+        Dimension size = ImageMask.readSize(file);
+        int rotations = targetRotations(size.height);
+        int columns = targetColumns(size.width, Z_STEP);
+        int levels = Math.max(ImageMask.BINARY_LEVELS, Math.min(ImageMask.MAX_LEVELS, blankConfiguration.getLevels()));
+        long decoded = (long) Plan.DECODED_BYTES_PER_PIXEL * size.width * size.height + ImageMask.bytes(size.width, size.height, levels);
+        return plan(rotations, columns, levels, decoded, ImageMask.bytes(columns, rotations, levels), -1, -1);
+    }
+
+    /*
+     * Plans with the decoded mask and, when the bound does not fit the budget, with the walls
+     * counted. Over budget plain STL is streamed instead of kept, which writes the same bytes, and
+     * anything else is merged.
+     */
+    private void applyPlan() {
+        plan = plan(rotationSteps(), mask.getWidth(), mask.getLevels(), 0, masksBytes(), -1, -1);
+        if (plan.getPeakHeap() > memoryBudget) {
+            plan = countedPlan();
+        }
+        plan.print(System.out);
+        if (plan.getPeakHeap() <= memoryBudget) {
+            return;
+        }
+
+        System.out.format("plan: peak heap over the budget of %.1f MB\n", memoryBudget / (1024.0 * 1024.0));
+        if (outputFormat == OutputFormat.STL && shardMode == null && !streaming && !mapped) {
+            streaming = true;
+            plan = countedPlan();
+            System.out.format("plan: streaming, peak heap: %.1f MB\n", plan.getPeakHeap() / (1024.0 * 1024.0));
+        }
+        if (plan.getPeakHeap() > memoryBudget && !merge) {
+            System.out.println("plan: merging");
+            merge = true;
+        }
+    }
+
+    // the exact plan of the resampled mask, round molds need their wall thickness mask for it
+    Plan countedPlan() {
+        if (blankConfiguration.isRoundMold() && wallThicknessMask == null) {
+            if (imageX == null) {
+                generateXYDimensions();
+            }
+            generateWallThicknessMask();
+        }
+        return plan(rotationSteps(), mask.getWidth(), mask.getLevels(), 0, masksBytes(), countWalls(false), countWalls(true));
+    }
+
+    private long masksBytes() {
+        return mask.getBytes() + (wallThicknessMask != null ? wallThicknessMask.getBytes() : 0);
+    }
+
+    /*
+     * Closed form facet count of the unmerged mesh. Every cell of the shaft and of the round mold
+     * wall is two facets plus two for each level of wall to the previous row or rotation, the rest
+     * only depends on the rotation steps and the mold flags. Walls are -1 while the pixels are
+     * unknown.
+     */
+    private Plan plan(int rotations, int columns, int levels, long loadBytes, long maskBytes, long shaftWalls, long moldWalls) {
+        boolean squareMold = blankConfiguration.isSquareMold();
+        boolean roundMold = blankConfiguration.isRoundMold();
+        boolean center = blankConfiguration.isCenter();
+        int steps = squareMold ? rotations / 2 : rotations;
+        float[] shaftZs = zSteps(imageZero());
+        float[] moldZs = roundMold ? zSteps(0.0f) : new float[0];
+        long shaftCells = (long) shaftZs.length * steps;
+        long moldCells = (long) moldZs.length * rotations;
+
+        long facets = 0;
+        if (squareMold) {
+            // the box, its walls at the top, shaft and bottom
+            facets += 18 + 2 + (center ? 1 : 0) + 4 + 6;
+        }
+        if (roundMold) {
+            facets += (long) rotations * (isFunnel() ? 6 : 2);
+            facets += isShort(moldZs) ? 2L * rotations : 0;
+            facets += (long) rotations * (center ? 1 : 2);
+        }
+        facets += roundMold && !center ? 0 : steps;
+        facets += imageZero() > 0.0f ? 2L * steps : 0;
+        facets += isShort(shaftZs) ? 2L * steps : 0;
+        if (isFunnel()) {
+            facets += (long) steps * (blankConfiguration.isPositive() ? 5 : 4);
+        } else if (blankConfiguration.isPositive()) {
+            facets += steps;
+        }
+        facets += 2 * (shaftCells + moldCells);
+
+        long walls = shaftWalls + moldWalls;
+        long minFacets = facets + (shaftWalls >= 0 ? 2 * walls : 0);
+        long maxFacets = facets + (shaftWalls >= 0 ? 2 * walls : 2L * (levels - 1) * (2 * shaftCells + steps) + 2 * (2 * moldCells + rotations));
+
+        String sinkName;
+        long meshBytes;
+        long keptBytes = 0;
+        if (outputFormat.isIndexed()) {
+            sinkName = "indexed mesh";
+            meshBytes = Plan.INDEXED_BYTES_PER_FACET * maxFacets;
+        } else if (outputFormat.isCompressed() || (streaming && shardMode == null)) {
+            // slabs are buffered until their turn, with threads that can be a whole section
+            sinkName = outputFormat.isCompressed() ? "compressed stream" : "stream";
+            meshBytes = outputFormat.isCompressed() ? CompressedStlWriter.BUFFERS * CompressedStlWriter.BUFFER_SIZE : StlWriter.BUFFER_SIZE;
+            meshBytes += threads > 1 ? Plan.MESH_BYTES_PER_FACET * maxFacets : 0;
+        } else if (mapped && shardMode == null) {
+            // unmerged slabs are encoded into their own region, merged ones are buffered like a stream
+            sinkName = "mapped";
+            meshBytes = threads > 1 && merge ? Plan.MESH_BYTES_PER_FACET * maxFacets : 0;
+        } else {
+            sinkName = shardMode != null ? "memory, shards" : "memory";
+            keptBytes = Plan.MESH_BYTES_PER_FACET * maxFacets;
+            meshBytes = keptBytes + (shardMode != null ? 0 : (long) StlWriter.FACET_SIZE * maxFacets);
+        }
+        long verifyBytes = verify ? keptBytes + Plan.VERIFY_BYTES_PER_FACET * maxFacets : 0;
+        long peakHeap = Math.max(loadBytes, maskBytes + Math.max(meshBytes, verifyBytes));
+
+        return new Plan(rotations, columns, minFacets, maxFacets, merge, sinkName, outputFormat, Plan.outputBytes(outputFormat, maxFacets), peakHeap);
+    }
+
+    // the generators add a last row up to length() when the z steps stop short of it
+    private boolean isShort(float[] zs) {
+        float lastZ = zs.length > 0 ? zs[zs.length - 1] + zStep() : 0.0f;
+        return lastZ < length();
+    }
+
+    // level changes to the previous row and to the previous rotation, and back down after the last row
+    private long countWalls(boolean roundMold) {
+        if (roundMold && !blankConfiguration.isRoundMold()) {
+            return 0;
+        }
+        int steps = !roundMold && blankConfiguration.isSquareMold() ? rotationSteps() / 2 : rotationSteps();
+        int rows = zSteps(roundMold ? 0.0f : imageZero()).length;
+        int startX = roundMold ? (int) -(imageZero() / zStep()) : 0;
+        long walls = 0;
+        for (int row = 0; row < rows; row++) {
+            walls += rowWalls(startX + row, steps, roundMold);
+        }
+        // back down from the last row
+        for (int i = 0; rows > 0 && i < steps; i++) {
+            walls += cell(startX + rows - 1, i, roundMold);
+        }
+        return walls;
+    }
+
+    private int rowWalls(int x, int steps, boolean roundMold) {
+        int walls = 0;
+        for (int i = 0; i < steps; i++) {
+            int level = cell(x, i, roundMold);
+            walls += Math.abs(level - cell(x - 1, i, roundMold));
+            walls += Math.abs(level - cell(x, i - 1, roundMold));
         }
+        return walls;
+    }
 
-        generateTop();
-        generateShaft();
-        generateBottom();
+    // what generateShaftRow and generateRoundMoldRow emit for row x
+    private int rowFacets(int x, int steps, boolean roundMold) {
+        return 2 * steps + 2 * rowWalls(x, steps, roundMold);
     }
 
-    private void generateXYDimensions() {
+    private static class Section {
+        private final String name;
+        private final MeshCache.KeyWriter inputs;
+        private final SectionGenerator generator;
+        private String key;
+
+        private Section(String name, MeshCache.KeyWriter inputs, SectionGenerator generator) {
+            this.name = name;
+            this.inputs = inputs;
+            this.generator = generator;
+        }
+
+        // generateShaft becomes shaft, generateSquareMold square-mold
+        private String label() {
+            return name.replaceFirst("^generate", "").replaceAll("([a-z])([A-Z])", "$1-$2").toLowerCase();
+        }
+    }
+
+    private interface SectionGenerator {
+        void generate(FacetSink sink);
+    }
+
+    /*
+     * Sections only read the masks and the ring arrays. When the mesh is kept in memory anyway and
+     * there is more than one thread, every section is generated into its own buffers at the same
+     * time and appended in the usual order, so the output does not change. Streaming sinks get the
+     * sections one after another. Either way the rows of a section share one pool.
+     */
+    private void generateSections(List<Section> sections) {
+        for (Section section : sections) {
+            section.key = sectionKey(section);
+        }
+
+        rowPool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            if (threads > 1 && sections.size() > 1 && (sink == blank || sink == indexedMesh)) {
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, sections.size()));
+                try {
+                    List<Future<Blank>> results = new ArrayList<>();
+                    for (Section section : sections) {
+                        results.add(executor.submit(() -> {
+                            Metrics.Phase phase = metrics.start(section.name, 0, 0);
+                            Blank facets = null;
+                            try {
+                                facets = generateBuffered(section);
+                                return facets;
+                            } finally {
+                                metrics.end(phase, facets != null ? facets.size() : 0, 0);
+                            }
+                        }));
+                    }
+                    for (int i = 0; i < sections.size(); i++) {
+                        append(sections.get(i), join(results.get(i)));
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+            } else {
+                for (Section section : sections) {
+                    int from = getFacetCount();
+                    if (section.key == null) {
+                        phase(section.name, () -> section.generator.generate(sink));
+                    } else {
+                        phase(section.name, () -> appendParts(generateBuffered(section)));
+                    }
+                    sectionRanges.add(new ShardWriter.Range(section.label(), from, getFacetCount()));
+                }
+            }
+        } finally {
+            if (rowPool != null) {
+                rowPool.shutdown();
+                rowPool = null;
+            }
+        }
+    }
+
+    private static <T> T join(Future<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // the facets of every section are remembered so the mesh can be cut into shards along them
+    private void append(Section section, Blank facets) {
+        int from = getFacetCount();
+        appendParts(facets);
+        sectionRanges.add(new ShardWriter.Range(section.label(), from, getFacetCount()));
+    }
+
+    private void appendParts(Blank facets) {
+        for (FacetBuffer part : facets.getParts()) {
+            if (part.size() > 0) {
+                sink.addFacets(part);
+            }
+        }
+    }
+
+    /*
+     * With a cache each section is generated into its own buffers and stored under a key of the
+     * inputs it reads, so a re-run only rebuilds the sections whose inputs changed.
+     */
+    private String sectionKey(Section section) {
+        if (cache == null) {
+            return null;
+        }
+        try {
+            return MeshCache.key(out -> {
+                out.writeInt(CACHE_VERSION);
+                out.writeUTF(section.name);
+                out.writeBoolean(blankConfiguration.isPositive());
+                section.inputs.write(out);
+            });
+        } catch (IOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
+
+    private Blank generateBuffered(Section section) {
+        Blank facets = new Blank();
+        if (section.key != null) {
+            FacetBuffer cached = cache.fetchSection(section.key);
+            if (cached != null) {
+                System.out.format("cached %s: %d facets\n", section.name, cached.size());
+                facets.addFacets(cached);
+                return facets;
+            }
+        }
+
+        section.generator.generate(facets);
+        if (section.key != null) {
+            cache.storeSection(section.key, facets.getParts());
+        }
+        return facets;
+    }
+
+    private String maskKey() throws IOException {
+        if (maskKey == null) {
+            maskKey = MeshCache.key(mask::writeTo);
+        }
+        return maskKey;
+    }
+
+    /*
+     * Mask columns are getColumnStep() apart and rows are one rotation step each, resample when the
+     * configured resolution differs from that.
+     */
+    void resampleImage() {
+        int rotations = targetRotations(mask.getHeight());
+        int columns = targetColumns(mask.getWidth(), mask.getColumnStep());
+        if (rotations != mask.getHeight() || columns != mask.getWidth()) {
+            System.out.format("resampling height: %d width: %d\n", rotations, columns);
+            mask = mask.resample(columns, rotations);
+        }
+    }
+
+    private int targetRotations(int imageHeight) {
+        int rotations = blankConfiguration.getRotationSteps() > 0 ? blankConfiguration.getRotationSteps() : imageHeight;
+        if (draft && rotations > DRAFT_ROTATION_STEPS) {
+            rotations = DRAFT_ROTATION_STEPS;
+        }
+        return rotations;
+    }
+
+    private int targetColumns(int imageWidth, float columnStep) {
+        return Math.max(1, Math.round(imageWidth * columnStep / zStep()));
+    }
+
+    private boolean fetchCached() {
+        try {
+            cacheKey = cacheKey();
+        } catch (IOException e) {
+            System.err.println(e);
+            return false;
+        }
+        cachedFacets = cache.fetch(cacheKey, new File(outputFilename), header);
+        if (cachedFacets < 0) {
+            return false;
+        }
+        System.out.format("cached: %s\n", cacheKey);
+        return true;
+    }
+
+    /*
+     * Everything the facets depend on once the mask is at its final resolution, threads and the
+     * output path only change how the same bytes are written.
+     */
+    String cacheKey() throws IOException {
+        return MeshCache.key(out -> {
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(maskKey());
+            out.writeFloat(blankConfiguration.getLength());
+            out.writeFloat(blankConfiguration.getTube());
+            out.writeFloat(blankConfiguration.getDiameter());
+            out.writeBoolean(blankConfiguration.isCenter());
+            out.writeFloat(blankConfiguration.getFunnel());
+            out.writeFloat(blankConfiguration.getRoundMold());
+            out.writeFloat(blankConfiguration.getSquareMold());
+            out.writeBoolean(blankConfiguration.isPositive());
+            out.writeFloat(blankConfiguration.getWallThickness());
+            out.writeFloat(blankConfiguration.getImageZero());
+            out.writeFloat(zStep());
+            out.writeBoolean(merge);
+        });
+    }
+
+    boolean openSink() {
+        if (shardMode != null && outputFormat != OutputFormat.STL) {
+            System.err.println("Shards are only written as STL: " + outputFilename);
+            return false;
+        }
+        if (outputFormat.isIndexed()) {
+            indexedMesh = new IndexedMesh();
+            sink = indexedMesh;
+        } else if (outputFormat.isCompressed()) {
+            try {
+                sink = new CompressedStlWriter(new File(outputFilename), header, outputFormat == OutputFormat.STL_ZIP);
+            } catch (IOException e) {
+                System.err.println(e);
+                return false;
+            }
+        } else if (streaming && shardMode == null) {
+            try {
+                sink = new StlWriter(new File(outputFilename), header);
+            } catch (IOException e) {
+                System.err.println(e);
+                return false;
+            }
+        } else if (mapped && shardMode == null) {
+            // sized for the unmerged count, merging only makes it shorter
+            try {
+                sink = new MappedStlWriter(new File(outputFilename), header, countedPlan().getMaxFacets());
+            } catch (IOException e) {
+                System.err.println(e);
+                return false;
+            }
+        } else {
+            sink = blank;
+        }
+        return true;
+    }
+
+    public int getFacetCount() {
+        if (cachedFacets >= 0) {
+            return cachedFacets;
+        }
+        if (indexedMesh != null) {
+            return indexedMesh.size();
+        }
+        if (sink instanceof StlWriter) {
+            return ((StlWriter) sink).getCount();
+        }
+        if (sink instanceof CompressedStlWriter) {
+            return ((CompressedStlWriter) sink).getCount();
+        }
+        if (sink instanceof MappedStlWriter) {
+            return ((MappedStlWriter) sink).getCount();
+        }
+        return blank.size();
+    }
+
+    Blank getBlank() {
+        return blank;
+    }
+
+    void generateXYDimensions() {
         System.out.println("dimensions");
         tubeX = new float[rotationSteps()];
         tubeY = new float[rotationSteps()];
@@ -102,6 +856,24 @@ public class Blanker {
             wallThicknessImageX[i] = calculateX(i, imageRadius() + wallThickness());
             wallThicknessImageY[i] = calculateY(i, imageRadius() + wallThickness());
         }
+
+        // relief levels in between share the tube and image rings at either end
+        int levels = mask.getLevels();
+        levelX = new float[levels][];
+        levelY = new float[levels][];
+        levelX[0] = tubeX;
+        levelY[0] = tubeY;
+        levelX[levels - 1] = imageX;
+        levelY[levels - 1] = imageY;
+        for (int level = 1; level < levels - 1; level++) {
+            float radius = tubeRadius() + (imageRadius() - tubeRadius()) * level / (levels - 1);
+            levelX[level] = new float[rotationSteps()];
+            levelY[level] = new float[rotationSteps()];
+            for (int i = 0; i < rotationSteps(); i++) {
+                levelX[level][i] = calculateX(i, radius);
+                levelY[level][i] = calculateY(i, radius);
+            }
+        }
     }
 
     private float calculateX(int step, float length) {
@@ -112,120 +884,128 @@ public class Blanker {
         return (float) Math.cos((2 * Math.PI) / rotationSteps() * step) * length;
     }
 
-    private void generateSquareMold() {
+    void generateWallThicknessMask() {
+        System.out.println("wall thickness");
+        int xPad = xPad();
+        int yPad = yPad();
+        System.out.format("x_pad: %d y_pad: %d\n", xPad, yPad);
+        wallThicknessMask = mask.dilate(xPad, yPad);
+    }
+
+    private void generateSquareMold(FacetSink sink) {
         System.out.println("generating square mold");
 
         // back
-        addFacet(
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
-        addFacet(
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
 
         // left
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
 
         // top
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(0.0f, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                0.0f, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
 
         // right
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING),
-                vertex(0.0f, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING)
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING,
+                0.0f, blankConfiguration.getSquareMold(), length() + (isFunnel() ? FUNNEL_DEPTH : 0.0f) + MOLD_TOP_PADDING
         );
 
         // bottom
-        addFacet(
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
-        addFacet(
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(-MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                -MOLD_THICKNESS, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
 
         // bottom left
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                0.0f, -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
-        addFacet(
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING)
+        emit(sink,
+                0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING
         );
 
 
         // bottom front
-        addFacet(
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
-        addFacet(
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING)
+        emit(sink,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING
         );
 
         // bottom right
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)),
-                vertex(0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS),
+                0.0f, blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS))
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -(MOLD_BOTTOM_PADDING + MOLD_THICKNESS)
         );
 
         // bottom top
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING)
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING
         );
-        addFacet(
-                vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                vertex(blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING)
+        emit(sink,
+                0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                blankConfiguration.getSquareMold(), -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING
         );
     }
 
-    private void generateRoundMold() {
+    void generateRoundMold(FacetSink sink) {
         System.out.println("generating round mold");
         float topZ = isFunnel() ? length() + FUNNEL_DEPTH + FUNNEL_HEIGHT : length();
         float funnelZ = length() + FUNNEL_DEPTH;
@@ -247,133 +1027,73 @@ public class Blanker {
             float Y3 = wallThicknessY(i + 1, false);
 
             // rim
-            addFacet(
-                    vertex(x0, y0, topZ),
-                    vertex(X0, Y0, topZ),
-                    vertex(X1, Y1, topZ)
+            emit(sink,
+                    x0, y0, topZ,
+                    X0, Y0, topZ,
+                    X1, Y1, topZ
             );
-            addFacet(
-                    vertex(x0, y0, topZ),
-                    vertex(X1, Y1, topZ),
-                    vertex(x1, y1, topZ)
+            emit(sink,
+                    x0, y0, topZ,
+                    X1, Y1, topZ,
+                    x1, y1, topZ
             );
 
             if (isFunnel()) {
                 // vertical
-                addFacet(
-                        vertex(X0, Y0, topZ),
-                        vertex(X0, Y0, funnelZ),
-                        vertex(X1, Y1, funnelZ)
+                emit(sink,
+                        X0, Y0, topZ,
+                        X0, Y0, funnelZ,
+                        X1, Y1, funnelZ
                 );
-                addFacet(
-                        vertex(X0, Y0, topZ),
-                        vertex(X1, Y1, funnelZ),
-                        vertex(X1, Y1, topZ)
+                emit(sink,
+                        X0, Y0, topZ,
+                        X1, Y1, funnelZ,
+                        X1, Y1, topZ
                 );
 
                 // angled
-                addFacet(
-                        vertex(X2, Y2, length()),
-                        vertex(X1, Y1, funnelZ),
-                        vertex(X0, Y0, funnelZ)
+                emit(sink,
+                        X2, Y2, length(),
+                        X1, Y1, funnelZ,
+                        X0, Y0, funnelZ
                 );
-                addFacet(
-                        vertex(X2, Y2, length()),
-                        vertex(X3, Y3, length()),
-                        vertex(X1, Y1, funnelZ)
+                emit(sink,
+                        X2, Y2, length(),
+                        X3, Y3, length(),
+                        X1, Y1, funnelZ
                 );
             }
         }
 
-        int x = (int) -(imageZero() / Z_STEP);
-        float lastZ = 0.0f;
-        for (float z = 0.0f; z < (length() - (2 * Z_STEP)); z += Z_STEP) {
-            lastZ = z + Z_STEP;
-
+        float[] zs = zSteps(0.0f);
+        int startX = (int) -(imageZero() / zStep());
+        if (merge && zs.length > 0) {
+            float[] edges = zEdges(zs);
+            generateRows(sink, rotationSteps(), (buffer, i) -> generateMergedColumn(buffer, i, startX, edges, true));
+        } else {
+            generateRows(sink, zs.length, (buffer, row) -> generateRoundMoldRow(buffer, startX + row, zs[row]),
+                    row -> rowFacets(startX + row, rotationSteps(), true));
+        }
+        float lastZ = zs.length > 0 ? zs[zs.length - 1] + zStep() : 0.0f;
+        if (zs.length > 0) {
             for (int i = 0; i < rotationSteps(); i++) {
-                boolean isImage = isWithinWallThickness(x, i);
-                boolean topImage = isWithinWallThickness(x - 1, i);
-                boolean leftImage = isWithinWallThickness(x, i - 1);
-
-                if (isImage != topImage) {
-                    if (isImage) {
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z),
-                                vertex(wallThicknessX(i + 1, true), wallThicknessY(i + 1, true), z)
-                        );
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z),
-                                vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z)
-                        );
-                    } else {
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i + 1, true), wallThicknessY(i + 1, true), z),
-                                vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z)
-                        );
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z)
-                        );
-                    }
-                }
-
-                if (isImage != leftImage) {
-                    if (isImage) {
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z + Z_STEP),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z + Z_STEP)
-                        );
-                        addFacet(
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z + Z_STEP),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z)
-                        );
-                    } else {
-                        addFacet(
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z),
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z + Z_STEP),
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z + Z_STEP)
-                        );
-                        addFacet(
-                                vertex(wallThicknessX(i, false), wallThicknessY(i, false), z),
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z + Z_STEP),
-                                vertex(wallThicknessX(i, true), wallThicknessY(i, true), z)
-                        );
-                    }
+                if (isWithinWallThickness(startX + zs.length - 1, i)) {
+                    generateRoundMoldTopWall(sink, i, lastZ, false);
                 }
-
-                addFacet(
-                        vertex(wallThicknessX(i, isImage), wallThicknessY(i, isImage), z),
-                        vertex(wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z),
-                        vertex(wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z + Z_STEP)
-                );
-
-                addFacet(
-                        vertex(wallThicknessX(i, isImage), wallThicknessY(i, isImage), z),
-                        vertex(wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z + Z_STEP),
-                        vertex(wallThicknessX(i, isImage), wallThicknessY(i, isImage), z + Z_STEP)
-                );
             }
-
-            x++;
         }
         if (lastZ < length()) {
             for (int i = 0; i < rotationSteps(); i++) {
-                addFacet(
-                        vertex(wallThicknessX(i, false), wallThicknessY(i, false), lastZ),
-                        vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), lastZ),
-                        vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), length())
+                emit(sink,
+                        wallThicknessX(i, false), wallThicknessY(i, false), lastZ,
+                        wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), lastZ,
+                        wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), length()
                 );
 
-                addFacet(
-                        vertex(wallThicknessX(i, false), wallThicknessY(i, false), lastZ),
-                        vertex(wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), length()),
-                        vertex(wallThicknessX(i, false), wallThicknessY(i, false), length())
+                emit(sink,
+                        wallThicknessX(i, false), wallThicknessY(i, false), lastZ,
+                        wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), length(),
+                        wallThicknessX(i, false), wallThicknessY(i, false), length()
                 );
             }
         }
@@ -391,49 +1111,125 @@ public class Blanker {
             float Y1 = wallThicknessY(i + 1, false);
 
             if (blankConfiguration.isCenter()) {
-                addFacet(
-                        vertex(0.0f, 0.0f, bottomZ),
-                        vertex(X1, Y1, bottomZ),
-                        vertex(X0, Y0, bottomZ)
+                emit(sink,
+                        0.0f, 0.0f, bottomZ,
+                        X1, Y1, bottomZ,
+                        X0, Y0, bottomZ
                 );
             } else {
-                addFacet(
-                        vertex(x0, y0, bottomZ),
-                        vertex(X1, Y1, bottomZ),
-                        vertex(X0, Y0, bottomZ)
+                emit(sink,
+                        x0, y0, bottomZ,
+                        X1, Y1, bottomZ,
+                        X0, Y0, bottomZ
                 );
-                addFacet(
-                        vertex(x0, y0, bottomZ),
-                        vertex(x1, y1, bottomZ),
-                        vertex(X1, Y1, bottomZ)
+                emit(sink,
+                        x0, y0, bottomZ,
+                        x1, y1, bottomZ,
+                        X1, Y1, bottomZ
                 );
             }
         }
     }
 
-    private void generateTop() {
+    private void generateRoundMoldRow(FacetSink sink, int x, float z) {
+        for (int i = 0; i < rotationSteps(); i++) {
+            boolean isImage = isWithinWallThickness(x, i);
+            boolean topImage = isWithinWallThickness(x - 1, i);
+            boolean leftImage = isWithinWallThickness(x, i - 1);
+
+            if (isImage != topImage) {
+                generateRoundMoldTopWall(sink, i, z, isImage);
+            }
+
+            if (isImage != leftImage) {
+                if (isImage) {
+                    emit(sink,
+                            wallThicknessX(i, true), wallThicknessY(i, true), z,
+                            wallThicknessX(i, true), wallThicknessY(i, true), z + zStep(),
+                            wallThicknessX(i, false), wallThicknessY(i, false), z + zStep()
+                    );
+                    emit(sink,
+                            wallThicknessX(i, true), wallThicknessY(i, true), z,
+                            wallThicknessX(i, false), wallThicknessY(i, false), z + zStep(),
+                            wallThicknessX(i, false), wallThicknessY(i, false), z
+                    );
+                } else {
+                    emit(sink,
+                            wallThicknessX(i, false), wallThicknessY(i, false), z,
+                            wallThicknessX(i, false), wallThicknessY(i, false), z + zStep(),
+                            wallThicknessX(i, true), wallThicknessY(i, true), z + zStep()
+                    );
+                    emit(sink,
+                            wallThicknessX(i, false), wallThicknessY(i, false), z,
+                            wallThicknessX(i, true), wallThicknessY(i, true), z + zStep(),
+                            wallThicknessX(i, true), wallThicknessY(i, true), z
+                    );
+                }
+            }
+
+            emit(sink,
+                    wallThicknessX(i, isImage), wallThicknessY(i, isImage), z,
+                    wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z,
+                    wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z + zStep()
+            );
+
+            emit(sink,
+                    wallThicknessX(i, isImage), wallThicknessY(i, isImage), z,
+                    wallThicknessX(i + 1, isImage), wallThicknessY(i + 1, isImage), z + zStep(),
+                    wallThicknessX(i, isImage), wallThicknessY(i, isImage), z + zStep()
+            );
+        }
+    }
+
+    private void generateRoundMoldTopWall(FacetSink sink, int i, float z, boolean isImage) {
+        if (isImage) {
+            emit(sink,
+                    wallThicknessX(i, true), wallThicknessY(i, true), z,
+                    wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z,
+                    wallThicknessX(i + 1, true), wallThicknessY(i + 1, true), z
+            );
+            emit(sink,
+                    wallThicknessX(i, true), wallThicknessY(i, true), z,
+                    wallThicknessX(i, false), wallThicknessY(i, false), z,
+                    wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z
+            );
+        } else {
+            emit(sink,
+                    wallThicknessX(i, true), wallThicknessY(i, true), z,
+                    wallThicknessX(i + 1, true), wallThicknessY(i + 1, true), z,
+                    wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z
+            );
+            emit(sink,
+                    wallThicknessX(i, true), wallThicknessY(i, true), z,
+                    wallThicknessX(i + 1, false), wallThicknessY(i + 1, false), z,
+                    wallThicknessX(i, false), wallThicknessY(i, false), z
+            );
+        }
+    }
+
+    private void generateTop(FacetSink sink) {
         System.out.println("generating top");
 
         int steps = blankConfiguration.isSquareMold() ? rotationSteps() / 2 : rotationSteps();
 
         if (blankConfiguration.isSquareMold()) {
             if (blankConfiguration.isCenter()) {
-                addFacet(
-                        vertex(0.0f, 0.0f, CENTER_DEPTH),
-                        vertex(0.0f, -tubeRadius(), 0.0f),
-                        vertex(0.0f, tubeRadius(), 0.0f)
+                emit(sink,
+                        0.0f, 0.0f, CENTER_DEPTH,
+                        0.0f, -tubeRadius(), 0.0f,
+                        0.0f, tubeRadius(), 0.0f
                 );
             }
 
-            addFacet(
-                    vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), 0.0f),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING)
+            emit(sink,
+                    0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                    0.0f, -blankConfiguration.getSquareMold(), 0.0f,
+                    0.0f, -blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING
             );
-            addFacet(
-                    vertex(0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), 0.0f),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), 0.0f)
+            emit(sink,
+                    0.0f, blankConfiguration.getSquareMold(), -MOLD_BOTTOM_PADDING,
+                    0.0f, blankConfiguration.getSquareMold(), 0.0f,
+                    0.0f, -blankConfiguration.getSquareMold(), 0.0f
             );
         }
 
@@ -448,135 +1244,74 @@ public class Blanker {
                 break;
             }
 
-            addFacet(
-                    vertex(x, y, 0.0f),
-                    vertex(X, Y, 0.0f),
-                    vertex(0.0f, 0.0f, z)
+            emit(sink,
+                    x, y, 0.0f,
+                    X, Y, 0.0f,
+                    0.0f, 0.0f, z
             );
         }
     }
 
-    private void generateShaft() {
+    void generateShaft(FacetSink sink) {
         System.out.println("generating shaft");
 
         int steps = blankConfiguration.isSquareMold() ? rotationSteps() / 2 : rotationSteps();
 
         if (blankConfiguration.isSquareMold()) {
-            addFacet(
-                    vertex(0.0f, -tubeRadius(), 0.0f),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length()),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), 0.0f)
+            emit(sink,
+                    0.0f, -tubeRadius(), 0.0f,
+                    0.0f, -blankConfiguration.getSquareMold(), length(),
+                    0.0f, -blankConfiguration.getSquareMold(), 0.0f
             );
-            addFacet(
-                    vertex(0.0f, -tubeRadius(), 0.0f),
-                    vertex(0.0f, -tubeRadius(), length()),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length())
+            emit(sink,
+                    0.0f, -tubeRadius(), 0.0f,
+                    0.0f, -tubeRadius(), length(),
+                    0.0f, -blankConfiguration.getSquareMold(), length()
             );
 
-            addFacet(
-                    vertex(0.0f, tubeRadius(), 0.0f),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), 0.0f),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length())
+            emit(sink,
+                    0.0f, tubeRadius(), 0.0f,
+                    0.0f, blankConfiguration.getSquareMold(), 0.0f,
+                    0.0f, blankConfiguration.getSquareMold(), length()
             );
-            addFacet(
-                    vertex(0.0f, tubeRadius(), 0.0f),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length()),
-                    vertex(0.0f, tubeRadius(), length())
+            emit(sink,
+                    0.0f, tubeRadius(), 0.0f,
+                    0.0f, blankConfiguration.getSquareMold(), length(),
+                    0.0f, tubeRadius(), length()
             );
         }
 
         if (imageZero() > 0.0f) {
             for (int i = 0; i < steps; i++) {
-                addFacet(
-                        vertex(x(i, false), y(i, false), 0.0f),
-                        vertex(x(i + 1, false), y(i + 1, false), imageZero()),
-                        vertex(x(i + 1, false), y(i + 1, false), 0.0f)
+                emit(sink,
+                        x(i, false), y(i, false), 0.0f,
+                        x(i + 1, false), y(i + 1, false), imageZero(),
+                        x(i + 1, false), y(i + 1, false), 0.0f
                 );
 
-                addFacet(
-                        vertex(x(i, false), y(i, false), 0.0f),
-                        vertex(x(i, false), y(i, false), imageZero()),
-                        vertex(x(i + 1, false), y(i + 1, false), imageZero())
+                emit(sink,
+                        x(i, false), y(i, false), 0.0f,
+                        x(i, false), y(i, false), imageZero(),
+                        x(i + 1, false), y(i + 1, false), imageZero()
                 );
             }
         }
 
-        int x = 0;
-        float lastZ = 0.0f;
-        for (float z = imageZero(); z < (length() - (2 * Z_STEP)); z += Z_STEP) {
-            lastZ = z + Z_STEP;
+        float[] zs = zSteps(imageZero());
+        if (merge && zs.length > 0) {
+            float[] edges = zEdges(zs);
+            generateRows(sink, steps, (buffer, i) -> generateMergedColumn(buffer, i, 0, edges, false));
+        } else {
+            generateRows(sink, zs.length, (buffer, row) -> generateShaftRow(buffer, row, zs[row], steps),
+                    row -> rowFacets(row, steps, false));
+        }
+        float lastZ = zs.length > 0 ? zs[zs.length - 1] + zStep() : 0.0f;
 
+        // the last row of the image steps back down to the tube, where the bottom joins the shaft
+        if (zs.length > 0) {
             for (int i = 0; i < steps; i++) {
-                boolean isImage = isImage(x, i);
-                boolean topImage = isImage(x - 1, i);
-                boolean leftImage = isImage(x, i - 1);
-
-                if (isImage != topImage) {
-                    if (isImage) {
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i + 1, true), y(i + 1, true), z),
-                                vertex(x(i + 1, false), y(i + 1, false), z)
-                        );
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i + 1, false), y(i + 1, false), z),
-                                vertex(x(i, false), y(i, false), z)
-                        );
-                    } else {
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i + 1, false), y(i + 1, false), z),
-                                vertex(x(i + 1, true), y(i + 1, true), z)
-                        );
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i, false), y(i, false), z),
-                                vertex(x(i + 1, false), y(i + 1, false), z)
-                        );
-                    }
-                }
-
-                if (isImage != leftImage) {
-                    if (isImage) {
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i, false), y(i, false), z + Z_STEP),
-                                vertex(x(i, true), y(i, true), z + Z_STEP)
-                        );
-                        addFacet(
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i, false), y(i, false), z),
-                                vertex(x(i, false), y(i, false), z + Z_STEP)
-                        );
-                    } else {
-                        addFacet(
-                                vertex(x(i, false), y(i, false), z),
-                                vertex(x(i, true), y(i, true), z + Z_STEP),
-                                vertex(x(i, false), y(i, false), z + Z_STEP)
-                        );
-                        addFacet(
-                                vertex(x(i, false), y(i, false), z),
-                                vertex(x(i, true), y(i, true), z),
-                                vertex(x(i, true), y(i, true), z + Z_STEP)
-                        );
-                    }
-                }
-
-                addFacet(
-                        vertex(x(i, isImage), y(i, isImage), z),
-                        vertex(x(i + 1, isImage), y(i + 1, isImage), z + Z_STEP),
-                        vertex(x(i + 1, isImage), y(i + 1, isImage), z)
-                );
-
-                addFacet(
-                        vertex(x(i, isImage), y(i, isImage), z),
-                        vertex(x(i, isImage), y(i, isImage), z + Z_STEP),
-                        vertex(x(i + 1, isImage), y(i + 1, isImage), z + Z_STEP)
-                );
+                generateShaftTopWall(sink, i, lastZ, 0, level(zs.length - 1, i));
             }
-
-            x++;
         }
 
         // it is possible that the Z has accumulated enough error due to floating
@@ -585,63 +1320,380 @@ public class Blanker {
         // to insert a new row.
         if (lastZ < length()) {
             for (int i = 0; i < steps; i++) {
-                // TODO: figure out if we need to do anything for the last line of image, but for now
-                // we are going to assume the last line of the image is all at tube depth
-                addFacet(
-                        vertex(x(i, false), y(i, false), lastZ),
-                        vertex(x(i + 1, false), y(i + 1, false), length()),
-                        vertex(x(i + 1, false), y(i + 1, false), lastZ)
+                emit(sink,
+                        x(i, false), y(i, false), lastZ,
+                        x(i + 1, false), y(i + 1, false), length(),
+                        x(i + 1, false), y(i + 1, false), lastZ
                 );
 
-                addFacet(
-                        vertex(x(i, false), y(i, false), lastZ),
-                        vertex(x(i, false), y(i, false), length()),
-                        vertex(x(i + 1, false), y(i + 1, false), length())
+                emit(sink,
+                        x(i, false), y(i, false), lastZ,
+                        x(i, false), y(i, false), length(),
+                        x(i + 1, false), y(i + 1, false), length()
                 );
             }
         }
     }
 
-    private void generateBottom() {
+    /*
+     * One sweep over a row of cells, each at its own depth level. A wall joins the two levels
+     * wherever the level changes from the previous row or rotation step, stacked one level at a
+     * time so walls meeting at a corner share every edge.
+     */
+    private void generateShaftRow(FacetSink sink, int x, float z, int steps) {
+        for (int i = 0; i < steps; i++) {
+            int level = level(x, i);
+            int top = level(x - 1, i);
+            int left = level(x, i - 1);
+
+            if (level != top) {
+                generateShaftTopWall(sink, i, z, level, top);
+            }
+
+            for (int low = Math.min(level, left); low < Math.max(level, left); low++) {
+                int high = low + 1;
+                if (level > left) {
+                    emit(sink,
+                            x(i, high), y(i, high), z,
+                            x(i, low), y(i, low), z + zStep(),
+                            x(i, high), y(i, high), z + zStep()
+                    );
+                    emit(sink,
+                            x(i, high), y(i, high), z,
+                            x(i, low), y(i, low), z,
+                            x(i, low), y(i, low), z + zStep()
+                    );
+                } else {
+                    emit(sink,
+                            x(i, low), y(i, low), z,
+                            x(i, high), y(i, high), z + zStep(),
+                            x(i, low), y(i, low), z + zStep()
+                    );
+                    emit(sink,
+                            x(i, low), y(i, low), z,
+                            x(i, high), y(i, high), z,
+                            x(i, high), y(i, high), z + zStep()
+                    );
+                }
+            }
+
+            emit(sink,
+                    x(i, level), y(i, level), z,
+                    x(i + 1, level), y(i + 1, level), z + zStep(),
+                    x(i + 1, level), y(i + 1, level), z
+            );
+
+            emit(sink,
+                    x(i, level), y(i, level), z,
+                    x(i, level), y(i, level), z + zStep(),
+                    x(i + 1, level), y(i + 1, level), z + zStep()
+            );
+        }
+    }
+
+    private void generateShaftTopWall(FacetSink sink, int i, float z, int level, int previous) {
+        for (int low = Math.min(level, previous); low < Math.max(level, previous); low++) {
+            int high = low + 1;
+            if (level > previous) {
+                emit(sink,
+                        x(i, high), y(i, high), z,
+                        x(i + 1, high), y(i + 1, high), z,
+                        x(i + 1, low), y(i + 1, low), z
+                );
+                emit(sink,
+                        x(i, high), y(i, high), z,
+                        x(i + 1, low), y(i + 1, low), z,
+                        x(i, low), y(i, low), z
+                );
+            } else {
+                emit(sink,
+                        x(i, high), y(i, high), z,
+                        x(i + 1, low), y(i + 1, low), z,
+                        x(i + 1, high), y(i + 1, high), z
+                );
+                emit(sink,
+                        x(i, high), y(i, high), z,
+                        x(i, low), y(i, low), z,
+                        x(i + 1, low), y(i + 1, low), z
+                );
+            }
+        }
+    }
+
+    // replays the float accumulation of the original z loop so slabs see exactly the serial z values
+    private float[] zSteps(float start) {
+        int count = 0;
+        for (float z = start; z < (length() - (2 * zStep())); z += zStep()) {
+            count++;
+        }
+
+        float[] zs = new float[count];
+        int row = 0;
+        for (float z = start; z < (length() - (2 * zStep())); z += zStep()) {
+            zs[row++] = z;
+        }
+        return zs;
+    }
+
+    // row boundaries, the last row ends at the same z the serial loop reaches
+    private float[] zEdges(float[] zs) {
+        float[] edges = Arrays.copyOf(zs, zs.length + 1);
+        edges[zs.length] = zs[zs.length - 1] + zStep();
+        return edges;
+    }
+
+    /*
+     * Merged meshing of one rotation column of the shaft or the round mold wall. Runs of equal cells
+     * along z become a single strip, as do runs of side walls. Every strip touching a rotation line
+     * carries all of that line's breakpoints (state changes in either neighbouring column) so the
+     * strips meet vertex to vertex and no T-junctions are introduced.
+     */
+    private void generateMergedColumn(FacetSink sink, int i, int startX, float[] edges, boolean roundMold) {
+        int rows = edges.length - 1;
+        int[] left = breakpoints(i, startX, rows, roundMold);
+        int[] right = breakpoints(i + 1, startX, rows, roundMold);
+
+        for (int row = 0; row < rows; row++) {
+            int level = cell(startX + row, i, roundMold);
+            int previous = cell(startX + row - 1, i, roundMold);
+            if (level != previous) {
+                if (roundMold) {
+                    generateRoundMoldTopWall(sink, i, edges[row], level > previous);
+                } else {
+                    generateShaftTopWall(sink, i, edges[row], level, previous);
+                }
+            }
+        }
+
+        int leftFrom = 0;
+        int rightFrom = 0;
+        int row = 0;
+        while (row < rows) {
+            int level = cell(startX + row, i, roundMold);
+            int end = row + 1;
+            while (end < rows && cell(startX + end, i, roundMold) == level) {
+                end++;
+            }
+
+            int leftTo = indexOf(left, leftFrom, end);
+            int rightTo = indexOf(right, rightFrom, end);
+            generateStrip(sink,
+                    ringX(i, level, roundMold), ringY(i, level, roundMold), left, leftFrom, leftTo,
+                    ringX(i + 1, level, roundMold), ringY(i + 1, level, roundMold), right, rightFrom, rightTo,
+                    edges, roundMold);
+            leftFrom = leftTo;
+            rightFrom = rightTo;
+            row = end;
+        }
+
+        leftFrom = 0;
+        row = 0;
+        while (row < rows) {
+            int level = cell(startX + row, i, roundMold);
+            int previous = cell(startX + row, i - 1, roundMold);
+            if (level == previous) {
+                row++;
+                continue;
+            }
+
+            int end = row + 1;
+            while (end < rows && cell(startX + end, i, roundMold) == level && cell(startX + end, i - 1, roundMold) == previous) {
+                end++;
+            }
+
+            leftFrom = indexOf(left, leftFrom, row);
+            int leftTo = indexOf(left, leftFrom, end);
+            for (int low = Math.min(level, previous); low < Math.max(level, previous); low++) {
+                generateStrip(sink,
+                        ringX(i, low + 1, roundMold), ringY(i, low + 1, roundMold), left, leftFrom, leftTo,
+                        ringX(i, low, roundMold), ringY(i, low, roundMold), left, leftFrom, leftTo,
+                        edges, (level > previous) != roundMold);
+            }
+            row = end;
+        }
+    }
+
+    // rows where the mesh needs a vertex on rotation line i
+    private int[] breakpoints(int i, int startX, int rows, boolean roundMold) {
+        int[] breakpoints = new int[rows + 1];
+        int count = 0;
+        breakpoints[count++] = 0;
+        for (int row = 1; row < rows; row++) {
+            int x = startX + row;
+            if (cell(x, i, roundMold) != cell(x - 1, i, roundMold) || cell(x, i - 1, roundMold) != cell(x - 1, i - 1, roundMold)) {
+                breakpoints[count++] = row;
+            }
+        }
+        breakpoints[count++] = rows;
+        return Arrays.copyOf(breakpoints, count);
+    }
+
+    private static int indexOf(int[] breakpoints, int from, int row) {
+        while (breakpoints[from] != row) {
+            from++;
+        }
+        return from;
+    }
+
+    /*
+     * Triangulates the quad between two parallel chains of breakpoints by always advancing the chain
+     * whose next vertex is lower, for a single cell this yields the same two facets as the row path.
+     */
+    private void generateStrip(FacetSink sink, float lx, float ly, int[] left, int leftFrom, int leftTo, float rx, float ry, int[] right, int rightFrom, int rightTo, float[] edges, boolean reverse) {
+        int l = leftFrom;
+        int r = rightFrom;
+        while (l < leftTo || r < rightTo) {
+            float az = edges[left[l]];
+            float cz = edges[right[r]];
+            float bx;
+            float by;
+            float bz;
+            if (r < rightTo && (l == leftTo || right[r + 1] <= left[l + 1])) {
+                bx = rx;
+                by = ry;
+                bz = edges[right[r + 1]];
+                r++;
+            } else {
+                bx = lx;
+                by = ly;
+                bz = edges[left[l + 1]];
+                l++;
+            }
+
+            if (reverse) {
+                emit(sink, lx, ly, az, rx, ry, cz, bx, by, bz);
+            } else {
+                emit(sink, lx, ly, az, bx, by, bz, rx, ry, cz);
+            }
+        }
+    }
+
+    // the round mold wall only follows where the image is, the shaft follows every relief level
+    private int cell(int x, int i, boolean roundMold) {
+        if (roundMold) {
+            return isWithinWallThickness(x, i) ? 1 : 0;
+        }
+        return level(x, i);
+    }
+
+    private float ringX(int i, int level, boolean roundMold) {
+        return roundMold ? wallThicknessX(i, level > 0) : x(i, level);
+    }
+
+    private float ringY(int i, int level, boolean roundMold) {
+        return roundMold ? wallThicknessY(i, level > 0) : y(i, level);
+    }
+
+    private interface RowGenerator {
+        void generate(FacetSink sink, int row);
+    }
+
+    /*
+     * Rows only read the masks and the ring arrays, so with more than one thread the rows are split
+     * into slabs that are generated into their own buffers and appended in slab order. A mapped
+     * file reserves each slab its region from the row facet counts, when they are known, and the
+     * slabs are encoded straight into it.
+     */
+    private void generateRows(FacetSink sink, int rows, RowGenerator generator) {
+        generateRows(sink, rows, generator, null);
+    }
+
+    private void generateRows(FacetSink sink, int rows, RowGenerator generator, IntUnaryOperator rowFacets) {
+        if (threads <= 1 || rows < 2) {
+            for (int row = 0; row < rows; row++) {
+                generator.generate(sink, row);
+            }
+            return;
+        }
+
+        MappedStlWriter writer = sink instanceof MappedStlWriter && rowFacets != null ? (MappedStlWriter) sink : null;
+        int slabs = Math.min(rows, threads * SLABS_PER_THREAD);
+        ForkJoinPool pool = rowPool != null ? rowPool : new ForkJoinPool(threads);
+        Metrics.Phase phase = metrics.current();
+        try {
+            List<ForkJoinTask<FacetBuffer>> tasks = new ArrayList<>(slabs);
+            for (int slab = 0; slab < slabs; slab++) {
+                int from = (int) ((long) rows * slab / slabs);
+                int to = (int) ((long) rows * (slab + 1) / slabs);
+                if (writer != null) {
+                    long facets = 0;
+                    for (int row = from; row < to; row++) {
+                        facets += rowFacets.applyAsInt(row);
+                    }
+                    MappedStlWriter.Region region = writer.reserve(facets);
+                    tasks.add(pool.submit(() -> metrics.measure(phase, () -> {
+                        for (int row = from; row < to; row++) {
+                            generator.generate(region, row);
+                        }
+                        if (!region.isFull()) {
+                            throw new IllegalStateException(String.format("Rows %d to %d wrote %d facets", from, to, region.getCount()));
+                        }
+                        return null;
+                    })));
+                    continue;
+                }
+                tasks.add(pool.submit(() -> metrics.measure(phase, () -> {
+                    FacetBuffer buffer = new FacetBuffer();
+                    for (int row = from; row < to; row++) {
+                        generator.generate(buffer, row);
+                    }
+                    return buffer;
+                })));
+            }
+
+            for (ForkJoinTask<FacetBuffer> task : tasks) {
+                FacetBuffer buffer = task.join();
+                if (buffer != null) {
+                    sink.addFacets(buffer);
+                }
+            }
+        } finally {
+            if (pool != rowPool) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private void generateBottom(FacetSink sink) {
         System.out.println("generate bottom");
 
         int steps = blankConfiguration.isSquareMold() ? rotationSteps() / 2 : rotationSteps();
 
         if (blankConfiguration.isSquareMold()) {
             // left
-            addFacet(
-                    vertex(0.0f, -tubeRadius(), length()),
-                    vertex(0.0f, -imageRadius(), length() + FUNNEL_DEPTH),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length())
+            emit(sink,
+                    0.0f, -tubeRadius(), length(),
+                    0.0f, -imageRadius(), length() + FUNNEL_DEPTH,
+                    0.0f, -blankConfiguration.getSquareMold(), length()
             );
-            addFacet(
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length()),
-                    vertex(0.0f, -imageRadius(), length() + FUNNEL_DEPTH),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH)
+            emit(sink,
+                    0.0f, -blankConfiguration.getSquareMold(), length(),
+                    0.0f, -imageRadius(), length() + FUNNEL_DEPTH,
+                    0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH
             );
 
             // right
-            addFacet(
-                    vertex(0.0f, tubeRadius(), length()),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length()),
-                    vertex(0.0f, imageRadius(), length() + FUNNEL_DEPTH)
+            emit(sink,
+                    0.0f, tubeRadius(), length(),
+                    0.0f, blankConfiguration.getSquareMold(), length(),
+                    0.0f, imageRadius(), length() + FUNNEL_DEPTH
             );
-            addFacet(
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length()),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH),
-                    vertex(0.0f, imageRadius(), length() + FUNNEL_DEPTH)
+            emit(sink,
+                    0.0f, blankConfiguration.getSquareMold(), length(),
+                    0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH,
+                    0.0f, imageRadius(), length() + FUNNEL_DEPTH
             );
 
             // above
-            addFacet(
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH)
+            emit(sink,
+                    0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH,
+                    0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING,
+                    0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH
             );
-            addFacet(
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH),
-                    vertex(0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING),
-                    vertex(0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING)
+            emit(sink,
+                    0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH,
+                    0.0f, blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING,
+                    0.0f, -blankConfiguration.getSquareMold(), length() + FUNNEL_DEPTH + MOLD_TOP_PADDING
             );
         }
 
@@ -658,35 +1710,35 @@ public class Blanker {
                 float z = length();
                 float Z = length() + FUNNEL_DEPTH;
 
-                addFacet(
-                        vertex(tx, ty, z),
-                        vertex(dX, dY, Z),
-                        vertex(tX, tY, z)
+                emit(sink,
+                        tx, ty, z,
+                        dX, dY, Z,
+                        tX, tY, z
                 );
 
-                addFacet(
-                        vertex(dx, dy, Z),
-                        vertex(dx, dy, Z + FUNNEL_HEIGHT),
-                        vertex(dX, dY, Z + FUNNEL_HEIGHT)
+                emit(sink,
+                        dx, dy, Z,
+                        dx, dy, Z + FUNNEL_HEIGHT,
+                        dX, dY, Z + FUNNEL_HEIGHT
                 );
 
-                addFacet(
-                        vertex(dx, dy, Z),
-                        vertex(dX, dY, Z + FUNNEL_HEIGHT),
-                        vertex(dX, dY, Z)
+                emit(sink,
+                        dx, dy, Z,
+                        dX, dY, Z + FUNNEL_HEIGHT,
+                        dX, dY, Z
                 );
 
-                addFacet(
-                        vertex(tx, ty, z),
-                        vertex(dx, dy, Z),
-                        vertex(dX, dY, Z)
+                emit(sink,
+                        tx, ty, z,
+                        dx, dy, Z,
+                        dX, dY, Z
                 );
 
                 if (blankConfiguration.isPositive()) {
-                    addFacet(
-                            vertex(dx, dy, Z + FUNNEL_HEIGHT),
-                            vertex(0, 0, Z + FUNNEL_HEIGHT),
-                            vertex(dX, dY, Z + FUNNEL_HEIGHT)
+                    emit(sink,
+                            dx, dy, Z + FUNNEL_HEIGHT,
+                            0, 0, Z + FUNNEL_HEIGHT,
+                            dX, dY, Z + FUNNEL_HEIGHT
                     );
                 }
             }
@@ -698,10 +1750,10 @@ public class Blanker {
                     float X = x(i + 1, false);
                     float Y = y(i + 1, false);
 
-                    addFacet(
-                            vertex(x, y, length()),
-                            vertex(0.0f, 0.0f, length()),
-                            vertex(X, Y, length())
+                    emit(sink,
+                            x, y, length(),
+                            0.0f, 0.0f, length(),
+                            X, Y, length()
                     );
                 }
             }
@@ -709,34 +1761,19 @@ public class Blanker {
     }
 
     boolean isImage(int x, int y) {
-        if (x < 0 || x >= image.getWidth()) {
-            return false;
-        } else if (y < 0) {
-            return isImage(x, image.getHeight() + y);
-        } else if (y >= image.getHeight()) {
-            return isImage(x, y % image.getHeight());
-        } else {
-            return image.getRGB(x, y) == -16777216;
-        }
+        return mask.isSet(x, y);
     }
 
-    boolean isWithinWallThickness(int x, int y) {
-        int xPad = xPad(); // width
-        int yPad = yPad(); // height
-
-        for (int i = (x - (xPad / 2)); i < (x + (xPad / 2)); i++) {
-            for (int j = (y - (yPad / 2)); j < (y + (yPad / 2)); j++) {
-                if (isImage(i, j)) {
-                    return true;
-                }
-            }
-        }
+    int level(int x, int y) {
+        return mask.getLevel(x, y);
+    }
 
-        return false;
+    boolean isWithinWallThickness(int x, int y) {
+        return wallThicknessMask.isSet(x, y);
     }
 
     int xPad() {
-        return (int) (wallThickness() / Z_STEP);
+        return (int) (wallThickness() / zStep());
     }
 
     int yPad() {
@@ -769,6 +1806,14 @@ public class Blanker {
         }
     }
 
+    float x(int rotationStep, int level) {
+        return levelX[level][rotationStep % rotationSteps()];
+    }
+
+    float y(int rotationStep, int level) {
+        return levelY[level][rotationStep % rotationSteps()];
+    }
+
     float funnelX(int rotationStep) {
         return funnelX[rotationStep % rotationSteps()];
     }
@@ -834,28 +1879,174 @@ public class Blanker {
     }
 
     private int rotationSteps() {
-        return image.getHeight();
+        return mask.getHeight();
     }
 
-    private Vertex vertex(float x, float y, float z) {
-        return new Vertex(x, y, z);
+    private float zStep() {
+        return draft ? Math.max(blankConfiguration.getZStep(), DRAFT_Z_STEP) : blankConfiguration.getZStep();
     }
 
-    private void addFacet(Vertex a, Vertex b, Vertex c) {
+    // negative blanks are wound the other way so their normals point into the cavity
+    private void emit(FacetSink sink, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
         if (blankConfiguration.isPositive()) {
-            blank.addFacet(new Facet(a, b, c, 0));
+            sink.addTriangle(ax, ay, az, bx, by, bz, cx, cy, cz);
         } else {
-            blank.addFacet(new Facet(a, c, b, 0));
+            sink.addTriangle(ax, ay, az, cx, cy, cz, bx, by, bz);
         }
     }
 
     public void writeStl() {
+        if (!written) {
+            phase("writeStl", this::write);
+        }
+
+        if (verify && written) {
+            phase("verify", this::verify);
+        }
+
+        if (metricsFile != null) {
+            try {
+                metrics.writeJson(metricsFile, outputFilename);
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    private void write() {
+        if (sink == null) {
+            // the output could not be opened, nothing was generated
+            return;
+        }
+
+        if (outputFormat.isIndexed()) {
+            written = writeIndexed();
+            return;
+        }
+
+        if (shardMode != null) {
+            writeShards();
+            return;
+        }
+
+        try {
+            if (outputFormat.isCompressed()) {
+                ((CompressedStlWriter) sink).close();
+            } else if (streaming) {
+                ((StlWriter) sink).close();
+            } else if (mapped) {
+                ((MappedStlWriter) sink).close();
+            } else {
+                OutputStream stream = new FileOutputStream(new File(outputFilename));
+                stream.write(blank.getBytes());
+                stream.close();
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+        written = true;
+
+        if (cacheKey != null) {
+            cache.store(cacheKey, new File(outputFilename));
+        }
+    }
+
+    private void writeShards() {
+        ShardWriter writer = new ShardWriter(new File(outputFilename), shardMode, shardFacets, threads);
+        try {
+            shards = writer.write(blank.getParts(), sectionRanges);
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+        for (ShardWriter.Shard shard : shards) {
+            System.out.format("shard: %s facets: %d\n", shard.getFile(), shard.getFacets());
+        }
+        System.out.format("manifest: %s\n", writer.getManifest());
+        written = true;
+    }
+
+    /*
+     * Reads the written STL or its shards back and checks the mesh is closed, consistently wound
+     * and free of degenerate facets.
+     */
+    private void verify() {
+        if (outputFormat != OutputFormat.STL) {
+            System.out.println("verify: only uncompressed STL output is read back");
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        if (shards != null) {
+            for (ShardWriter.Shard shard : shards) {
+                files.add(shard.getFile());
+            }
+        } else {
+            files.add(new File(outputFilename));
+        }
+
+        // shards are checked together, the cuts between them are not edges of the mesh
+        MeshValidator meshValidator = new MeshValidator(getFacetCount());
+        for (File file : files) {
+            try (StlReader reader = new StlReader(file)) {
+                reader.writeTo(meshValidator);
+            } catch (IOException e) {
+                System.err.println(e);
+                return;
+            }
+        }
+        meshValidator.print(System.out);
+        validator = meshValidator;
+        verified = verifyBaseline != null ? compareBaseline(meshValidator) : meshValidator.isValid();
+    }
+
+    private boolean compareBaseline(MeshValidator meshValidator) {
+        Properties baseline = new Properties();
         try {
-            OutputStream stream = new FileOutputStream(new File(outputFilename));
-            stream.write(blank.getBytes());
-            stream.close();
+            if (recordBaseline || (!verifyBaseline.exists() && meshValidator.isValid())) {
+                try (OutputStream out = new FileOutputStream(verifyBaseline)) {
+                    meshValidator.getDefects().store(out, "verify baseline");
+                }
+                System.out.format("verify: baseline written to %s\n", verifyBaseline);
+                return true;
+            }
+            if (!verifyBaseline.exists()) {
+                System.out.format("verify: no baseline %s, an invalid mesh needs one recorded first\n", verifyBaseline);
+                return false;
+            }
+            try (InputStream in = new FileInputStream(verifyBaseline)) {
+                baseline.load(in);
+            }
         } catch (IOException e) {
             System.err.println(e);
+            return false;
+        }
+        boolean within = meshValidator.isWithin(baseline);
+        System.out.format("verify: %s baseline %s\n", within ? "within" : "more defects than", verifyBaseline);
+        return within;
+    }
+
+    private boolean writeIndexed() {
+        File file = new File(outputFilename);
+        System.out.format("vertices: %d triangles: %d\n", indexedMesh.getVertices().size(), indexedMesh.size());
+        try {
+            switch (outputFormat) {
+                case OBJ:
+                    ObjWriter.write(file, indexedMesh, file.getName());
+                    break;
+                case PLY:
+                    PlyWriter.write(file, indexedMesh, file.getName());
+                    break;
+                case THREE_MF:
+                    ThreeMfWriter.write(file, indexedMesh, file.getName());
+                    break;
+                default:
+                    throw new UnsupportedOperationException(outputFormat.name());
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,439 @@
+package org.crazydays;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+ * One bit per pixel view of the engraving, columns run along z and rows run around the rotation.
+ * A relief of more than two levels also keeps one byte per pixel with its depth level, 0 at the
+ * tube up to levels - 1 at the blank diameter, and the bits mark every pixel above level 0.
+ */
+public class ImageMask {
+    public final static int DEFAULT_THRESHOLD = 0;
+    public final static int BINARY_LEVELS = 2;
+    public final static int MAX_LEVELS = 256;
+
+    private final int originX;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final long[] bits;
+    private final float columnStep;
+    private final int levels;
+    private final byte[] depths;
+
+    public ImageMask(int width, int height) {
+        this(width, height, Blanker.Z_STEP);
+    }
+
+    // columnStep is the z distance in mm between columns, decoded images are Z_STEP apart
+    public ImageMask(int width, int height, float columnStep) {
+        this(0, width, height, columnStep);
+    }
+
+    private ImageMask(int originX, int width, int height, float columnStep) {
+        this(originX, width, height, columnStep, BINARY_LEVELS);
+    }
+
+    private ImageMask(int originX, int width, int height, float columnStep, int levels) {
+        this.originX = originX;
+        this.columnStep = columnStep;
+        this.width = width;
+        this.height = height;
+        this.stride = (width + 63) >>> 6;
+        this.bits = new long[stride * height];
+        this.levels = levels;
+        this.depths = levels > BINARY_LEVELS ? new byte[width * height] : null;
+    }
+
+    public static ImageMask fromImage(BufferedImage image, int threshold) {
+        ImageMask mask = new ImageMask(image.getWidth(), image.getHeight());
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < row.length; x++) {
+                if (isBlack(row[x], threshold)) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /*
+     * Quantizes the darkness of every pixel into levels depths in the same pass that reads the
+     * pixels, two levels is the plain threshold mask. Above two the threshold is not used, only
+     * white stays at the tube.
+     */
+    public static ImageMask fromImage(BufferedImage image, int threshold, int levels) {
+        if (levels <= BINARY_LEVELS) {
+            return fromImage(image, threshold);
+        }
+        ImageMask mask = new ImageMask(0, image.getWidth(), image.getHeight(), Blanker.Z_STEP, Math.min(levels, MAX_LEVELS));
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < row.length; x++) {
+                int level = level(row[x], mask.levels);
+                if (level > 0) {
+                    mask.depths[y * mask.width + x] = (byte) level;
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    public static ImageMask read(File file, int threshold) throws IOException {
+        return read(file, threshold, BINARY_LEVELS);
+    }
+
+    public static ImageMask read(File file, int threshold, int levels) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException(String.format("Unsupported image: %s", file));
+        }
+        return fromImage(image, threshold, levels);
+    }
+
+    // width and height from the image header, the pixels are not decoded
+    public static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException(String.format("Unsupported image: %s", file));
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // heap held by a mask of this size
+    public static long bytes(int width, int height, int levels) {
+        return 8L * ((width + 63) >>> 6) * height + (levels > BINARY_LEVELS ? (long) width * height : 0);
+    }
+
+    // darkness of the luma, scaled by opacity, rounded to the nearest level
+    static int level(int argb, int levels) {
+        int alpha = argb >>> 24;
+        int darkness = (255 - luma(argb)) * alpha / 255;
+        return (darkness * (levels - 1) + 127) / 255;
+    }
+
+    // opaque and the unrounded luma at or below the threshold, a threshold of 0 only accepts pure black
+    static boolean isBlack(int argb, int threshold) {
+        int alpha = argb >>> 24;
+        return alpha == 0xff && luma1000(argb) <= threshold * 1000;
+    }
+
+    // Rec. 601 brightness, grey comes out as its own value
+    static int luma(int argb) {
+        return (luma1000(argb) + 500) / 1000;
+    }
+
+    // luma scaled by 1000, so any channel above 0 counts
+    private static int luma1000(int argb) {
+        int red = (argb >> 16) & 0xff;
+        int green = (argb >> 8) & 0xff;
+        int blue = argb & 0xff;
+        return 299 * red + 587 * green + 114 * blue;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float getColumnStep() {
+        return columnStep;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public long getBytes() {
+        return 8L * bits.length + (depths != null ? depths.length : 0);
+    }
+
+    /*
+     * Columns outside the image are never set, rows wrap around the rotation.
+     */
+    public boolean isSet(int x, int y) {
+        int column = x - originX;
+        if (Integer.compareUnsigned(column, width) >= 0) {
+            return false;
+        }
+        long word = bits[Math.floorMod(y, height) * stride + (column >>> 6)];
+        return (word & (1L << column)) != 0;
+    }
+
+    // depth level of a cell, a binary mask only has levels 0 and 1
+    public int getLevel(int x, int y) {
+        int column = x - originX;
+        if (Integer.compareUnsigned(column, width) >= 0) {
+            return 0;
+        }
+        int row = Math.floorMod(y, height);
+        if (depths != null) {
+            return depths[row * width + column] & 0xff;
+        }
+        return (bits[row * stride + (column >>> 6)] & (1L << column)) != 0 ? 1 : 0;
+    }
+
+    /*
+     * Precomputes the box test of Blanker.isWithinWallThickness(), a cell is set when any pixel in
+     * [x - xPad / 2, x + xPad / 2) by [y - yPad / 2, y + yPad / 2) is set. Columns are dilated by
+     * extending each run of set bits, rows by OR-ing neighbouring rows with wrap around.
+     */
+    public ImageMask dilate(int xPad, int yPad) {
+        int xHalf = xPad / 2;
+        int yHalf = yPad / 2;
+        if (xHalf <= 0 || yHalf <= 0) {
+            return new ImageMask(0, 0, height, columnStep);
+        }
+
+        int span = 2 * xHalf;
+        ImageMask columns = new ImageMask(originX - xHalf + 1, width + span - 1, height, columnStep);
+        for (int y = 0; y < height; y++) {
+            int base = y * stride;
+            int start = nextSetBit(bits, base, width, 0);
+            while (start >= 0) {
+                int end = nextClearBit(bits, base, width, start);
+                setRange(columns.bits, y * columns.stride, start, end + span - 1);
+                start = nextSetBit(bits, base, width, end);
+            }
+        }
+
+        int window = 2 * yHalf;
+        ImageMask dilated = new ImageMask(columns.originX, columns.width, height, columnStep);
+        if (window >= height) {
+            long[] all = new long[columns.stride];
+            for (int y = 0; y < height; y++) {
+                or(all, 0, columns.bits, y * columns.stride, columns.stride);
+            }
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(all, 0, dilated.bits, y * dilated.stride, dilated.stride);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int k = 0; k < window; k++) {
+                    int source = Math.floorMod(y - yHalf + k, height);
+                    or(dilated.bits, y * dilated.stride, columns.bits, source * columns.stride, columns.stride);
+                }
+            }
+        }
+        return dilated;
+    }
+
+    /*
+     * Area coverage resampling onto a new grid, a target cell is set when at least half of the
+     * source area underneath it is set.
+     */
+    public ImageMask resample(int targetWidth, int targetHeight) {
+        if (depths != null) {
+            return resampleDepths(targetWidth, targetHeight);
+        }
+        ImageMask resampled = new ImageMask(originX, targetWidth, targetHeight, columnStep * width / targetWidth);
+        double sx = (double) width / targetWidth;
+        double sy = (double) height / targetHeight;
+        double half = sx * sy / 2.0;
+        double[] rowCoverage = new double[targetWidth];
+        double[] coverage = new double[targetWidth];
+
+        for (int ty = 0; ty < targetHeight; ty++) {
+            double y0 = ty * sy;
+            double y1 = (ty + 1) * sy;
+            Arrays.fill(coverage, 0.0);
+            for (int y = (int) y0; y < Math.min(height, (int) Math.ceil(y1)); y++) {
+                double weight = Math.min(y1, y + 1) - Math.max(y0, y);
+                if (weight <= 0.0) {
+                    continue;
+                }
+                columnCoverage(y, sx, rowCoverage);
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    coverage[tx] += weight * rowCoverage[tx];
+                }
+            }
+
+            for (int tx = 0; tx < targetWidth; tx++) {
+                if (coverage[tx] >= half) {
+                    resampled.bits[ty * resampled.stride + (tx >>> 6)] |= 1L << tx;
+                }
+            }
+        }
+        return resampled;
+    }
+
+    // a relief cell gets the area weighted mean level underneath it, rounded to the nearest level
+    private ImageMask resampleDepths(int targetWidth, int targetHeight) {
+        ImageMask resampled = new ImageMask(originX, targetWidth, targetHeight, columnStep * width / targetWidth, levels);
+        double sx = (double) width / targetWidth;
+        double sy = (double) height / targetHeight;
+        double[] sum = new double[targetWidth];
+
+        for (int ty = 0; ty < targetHeight; ty++) {
+            double y0 = ty * sy;
+            double y1 = (ty + 1) * sy;
+            Arrays.fill(sum, 0.0);
+            for (int y = (int) y0; y < Math.min(height, (int) Math.ceil(y1)); y++) {
+                double rowWeight = Math.min(y1, y + 1) - Math.max(y0, y);
+                if (rowWeight <= 0.0) {
+                    continue;
+                }
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    double x0 = tx * sx;
+                    double x1 = (tx + 1) * sx;
+                    for (int x = (int) x0; x < Math.min(width, (int) Math.ceil(x1)); x++) {
+                        double weight = Math.min(x1, x + 1) - Math.max(x0, x);
+                        if (weight > 0.0) {
+                            sum[tx] += rowWeight * weight * (depths[y * width + x] & 0xff);
+                        }
+                    }
+                }
+            }
+
+            for (int tx = 0; tx < targetWidth; tx++) {
+                int level = (int) Math.round(sum[tx] / (sx * sy));
+                if (level > 0) {
+                    resampled.depths[ty * targetWidth + tx] = (byte) level;
+                    resampled.bits[ty * resampled.stride + (tx >>> 6)] |= 1L << tx;
+                }
+            }
+        }
+        return resampled;
+    }
+
+    // set length of source row y inside each target column of width sx
+    private void columnCoverage(int y, double sx, double[] coverage) {
+        Arrays.fill(coverage, 0.0);
+        int base = y * stride;
+        int start = nextSetBit(bits, base, width, 0);
+        while (start >= 0) {
+            int end = nextClearBit(bits, base, width, start);
+            int last = Math.min(coverage.length - 1, (int) Math.ceil(end / sx) - 1);
+            for (int tx = (int) (start / sx); tx <= last; tx++) {
+                double overlap = Math.min(end, (tx + 1) * sx) - Math.max(start, tx * sx);
+                if (overlap > 0.0) {
+                    coverage[tx] += overlap;
+                }
+            }
+            start = nextSetBit(bits, base, width, end);
+        }
+    }
+
+    private static int nextSetBit(long[] bits, int base, int length, int from) {
+        if (from >= length) {
+            return -1;
+        }
+        int index = from >>> 6;
+        long word = bits[base + index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int bit = (index << 6) + Long.numberOfTrailingZeros(word);
+                return bit < length ? bit : -1;
+            }
+            if (++index << 6 >= length) {
+                return -1;
+            }
+            word = bits[base + index];
+        }
+    }
+
+    private static int nextClearBit(long[] bits, int base, int length, int from) {
+        int index = from >>> 6;
+        long word = ~bits[base + index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return Math.min(length, (index << 6) + Long.numberOfTrailingZeros(word));
+            }
+            if (++index << 6 >= length) {
+                return length;
+            }
+            word = ~bits[base + index];
+        }
+    }
+
+    // sets bits [from, to) of the row starting at base
+    private static void setRange(long[] bits, int base, int from, int to) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            bits[base + first] |= firstMask & lastMask;
+        } else {
+            bits[base + first] |= firstMask;
+            for (int i = first + 1; i < last; i++) {
+                bits[base + i] = -1L;
+            }
+            bits[base + last] |= lastMask;
+        }
+    }
+
+    private static void clearRange(long[] bits, int base, int from, int to) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            bits[base + first] &= ~(firstMask & lastMask);
+        } else {
+            bits[base + first] &= ~firstMask;
+            for (int i = first + 1; i < last; i++) {
+                bits[base + i] = 0L;
+            }
+            bits[base + last] &= ~lastMask;
+        }
+    }
+
+    private static void or(long[] target, int targetBase, long[] source, int sourceBase, int length) {
+        for (int i = 0; i < length; i++) {
+            target[targetBase + i] |= source[sourceBase + i];
+        }
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(originX);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeFloat(columnStep);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+        if (depths != null) {
+            out.writeInt(levels);
+            out.write(depths);
+        }
+    }
+
+    // sets columns [from, to) of row y
+    void setSpan(int y, int from, int to) {
+        setRange(bits, y * stride, from - originX, to - originX);
+    }
+
+    void clearSpan(int y, int from, int to) {
+        clearRange(bits, y * stride, from - originX, to - originX);
+    }
+
+    void set(int x, int y) {
+        int column = x - originX;
+        bits[y * stride + (column >>> 6)] |= 1L << column;
+    }
+}
@@ -1,35 +1,128 @@
 package org.crazydays;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.Argument;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.ArgumentType;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
+
 public class Main {
+    // a z step that is not above 0 never reaches the end of the blank
+    final static ArgumentType<Float> POSITIVE = (parser, argument, value) -> {
+        float number = parse(parser, argument, value, Float::valueOf);
+        if (!(number > 0.0f) || Float.isInfinite(number)) {
+            throw new ArgumentParserException(String.format("must be a finite number above 0: %s", value), parser, argument);
+        }
+        return number;
+    };
+
+    final static ArgumentType<Integer> NON_NEGATIVE = (parser, argument, value) -> {
+        int number = parse(parser, argument, value, Integer::valueOf);
+        if (number < 0) {
+            throw new ArgumentParserException(String.format("must not be negative: %s", value), parser, argument);
+        }
+        return number;
+    };
+
     public static void main(String[] args) {
-        ArgumentParser parser = ArgumentParsers.newFor("blanker").build().defaultHelp(true).description("Prepare pen blank STL with SVG from files");
+        if (args.length > 0 && args[0].equals(Batch.COMMAND)) {
+            Batch.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals(Server.COMMAND)) {
+            Server.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        ArgumentParser parser = createParser("blanker");
+
+        Namespace ns = null;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        }
+
+        Blanker blanker = createBlanker(ns, true);
+        if (ns.getBoolean("plan")) {
+            try {
+                blanker.planFromHeader().print(System.out);
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getLocalizedMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        blanker.loadImage();
+        blanker.generateStl();
+        blanker.writeStl();
+        blanker.getMetrics().print(System.out);
+        if (!blanker.isWritten()) {
+            System.exit(1);
+        }
+        if (blanker.getValidator() != null && !blanker.isVerified()) {
+            System.exit(2);
+        }
+    }
+
+    private static <T> T parse(ArgumentParser parser, Argument argument, String value, Function<String, T> valueOf) throws ArgumentParserException {
+        try {
+            return valueOf.apply(value);
+        } catch (NumberFormatException e) {
+            throw new ArgumentParserException(String.format("not a number: %s", value), parser, argument);
+        }
+    }
+
+    static ArgumentParser createParser(String name) {
+        ArgumentParser parser = ArgumentParsers.newFor(name).build().defaultHelp(true).description("Prepare pen blank STL with SVG from files");
         parser.addArgument("-u", "--units").choices("inch", "mm").setDefault("mm").help("Units");
         parser.addArgument("-l", "--length").type(Float.class).setDefault(2.0f).help("Blank length");
         parser.addArgument("-t", "--tube").type(Float.class).setDefault(0.25f).help("Tube diameter");
-        parser.addArgument("-d", "--diameter").type(Float.class).setDefault(0.75).help("Blank diameter");
-        parser.addArgument("-z", "--imageZero").type(Float.class).setDefault(.50).help("Image zero");
+        parser.addArgument("-d", "--diameter").type(Float.class).setDefault(0.75f).help("Blank diameter");
+        parser.addArgument("-z", "--imageZero").type(Float.class).setDefault(.50f).help("Image zero");
         parser.addArgument("-c", "--center").type(Boolean.class).setDefault(true).help("Mold center");
         parser.addArgument("-f", "--funnel").type(Float.class).setDefault(0.0f).help("Pour funnel diameter");
         parser.addArgument("-m", "--mold").type(Float.class).setDefault(0.0f).help("Tube mold diameter");
         parser.addArgument("-s", "--squareMold").type(Float.class).setDefault(0.0f).help("Square mold width");
         parser.addArgument("-p", "--positive").type(Boolean.class).setDefault(true).help("Positive");
         parser.addArgument("-w", "--wallThickness").type(Float.class).setDefault(0.0f).help("Wall Thickness");
-        parser.addArgument("-i", "--image").type(String.class).help("SVG image file");
-        parser.addArgument("-o", "--output").type(String.class).setDefault("blank.stl").help("Output STL file");
+        parser.addArgument("--threshold").type(Integer.class).setDefault(ImageMask.DEFAULT_THRESHOLD).help("Luma at or below which a pixel is image (0-255), not used when --levels is above 2");
+        parser.addArgument("--levels").type(Integer.class).setDefault(ImageMask.BINARY_LEVELS).help("Relief depths between tube and diameter taken from the luma, only white stays at the tube, 2 engraves black at the threshold");
+        parser.addArgument("-r", "--rotationSteps").type(NON_NEGATIVE).setDefault(0).help("Steps around the circumference, 0 uses the image height");
+        parser.addArgument("--zStep").type(POSITIVE).setDefault(Blanker.Z_STEP).help("Z resolution in mm");
+        parser.addArgument("-i", "--image").type(String.class).help("Image file, SVG or any format ImageIO reads");
+        parser.addArgument("-o", "--output").type(String.class).setDefault("blank.stl").help("Output file, the extension selects STL, STL.GZ, ZIP, OBJ, PLY or 3MF");
+        parser.addArgument("--threads").type(Integer.class).setDefault(1).help("Generation threads");
+        parser.addArgument("--merge").type(Boolean.class).setDefault(false).help("Merge runs of equal cells into larger facets");
+        parser.addArgument("--stream").type(Boolean.class).setDefault(false).help("Stream facets to the output file while generating");
+        parser.addArgument("--draft").type(Boolean.class).setDefault(false).help("Fast coarse preview with the final outer dimensions");
+        parser.addArgument("--cache").type(String.class).help("Directory of cached meshes shared between runs");
+        parser.addArgument("--cacheSize").type(Integer.class).setDefault(1024).help("Cache size limit in MB");
+        parser.addArgument("--metrics").type(String.class).help("Write per phase timing, allocation and facet counts as JSON");
+        parser.addArgument("--verify").type(Boolean.class).setDefault(false).help("Read the STL back and check it is closed and consistently wound");
+        parser.addArgument("--verifyBaseline").type(String.class).help("Properties file of defect counts verify may not exceed, for molds and negatives that are open by design, written by the first run only if the mesh is valid");
+        parser.addArgument("--recordBaseline").type(Boolean.class).setDefault(false).help("Write the verify baseline from this run even if the mesh is not valid");
+        parser.addArgument("--shard").choices("none", "section", "slab", "facets").setDefault("none").help("Split the STL into shards by generate section, z slab or facet count, with a JSON manifest");
+        parser.addArgument("--shardFacets").type(Integer.class).setDefault(1000000).help("Most facets in one shard");
+        parser.addArgument("--plan").type(Boolean.class).setDefault(false).help("Only print the planned facet count, output size and peak heap, reading just the image header");
+        parser.addArgument("--memoryBudget").type(Integer.class).setDefault(0).help("Heap in MB the mesh must fit in, beyond it STL is streamed and other output merged, 0 uses the maximum heap, shared between batch workers");
+        parser.addArgument("--mapped").type(Boolean.class).setDefault(false).help("Write the STL through a pre-sized memory-mapped file");
+        return parser;
+    }
 
-        Namespace ns = null;
-        try {
-            ns = parser.parseArgs(args);
-        } catch (ArgumentParserException e) {
-            parser.handleError(e);
-            System.exit(1);
-        }
+    static Blanker createBlanker(Namespace ns, boolean verbose) {
+        return createBlanker(ns, verbose, 1);
+    }
 
+    // without a memory budget the heap is split evenly between the jobs running at once
+    static Blanker createBlanker(Namespace ns, boolean verbose, int jobs) {
         String rawUnits = ns.getString("units");
         Units units = null;
         if (rawUnits.equals("inch")) {
@@ -54,31 +147,90 @@ public class Main {
 
         float imageZero = ns.getFloat("imageZero");
         String imageFilename = ns.getString("image");
+        int threshold = ns.getInt("threshold");
+        int levels = ns.getInt("levels");
+        int rotationSteps = ns.getInt("rotationSteps");
+        float zStep = ns.getFloat("zStep");
 
         String outputFilename = ns.getString("output");
+        boolean stream = ns.getBoolean("stream");
+        int threads = ns.getInt("threads");
+        boolean merge = ns.getBoolean("merge");
+        boolean mapped = ns.getBoolean("mapped");
+        boolean draft = ns.getBoolean("draft");
+        String cache = ns.getString("cache");
+        int cacheSize = ns.getInt("cacheSize");
+        String metrics = ns.getString("metrics");
+        boolean verify = ns.getBoolean("verify");
+        String verifyBaseline = ns.getString("verifyBaseline");
+        boolean recordBaseline = ns.getBoolean("recordBaseline");
+        String shard = ns.getString("shard");
+        int shardFacets = ns.getInt("shardFacets");
+        int memoryBudget = ns.getInt("memoryBudget");
 
-        System.out.format("Generating blank\n");
-        System.out.format("\tUnits: %s\n", units.name());
-        System.out.format("\tLength: %.3f\n", length);
-        System.out.format("\tTube: %.3f\n", tube);
-        System.out.format("\tDiameter: %.3f\n", diameter);
-        System.out.format("\tCenter: %b\n", center);
-        System.out.format("\tFunnel: %.3f\n", funnel);
-        System.out.format("\tRound Mold: %.3f\n", roundMold);
-        System.out.format("\tSquare Mold: %.3f\n", squareMold);
-        System.out.format("\tPositive: %b\n", positive);
-        System.out.format("\tWall Thickness: %.3f\n", wallThickness);
-        System.out.format("\tImageZero: %.3f\n", imageZero);
-        System.out.format("\tImageFilename: %s\n", imageFilename);
-        System.out.format("\tOutputFilename: %s\n", outputFilename);
+        if (verbose) {
+            System.out.format("Generating blank\n");
+            System.out.format("\tUnits: %s\n", units.name());
+            System.out.format("\tLength: %.3f\n", length);
+            System.out.format("\tTube: %.3f\n", tube);
+            System.out.format("\tDiameter: %.3f\n", diameter);
+            System.out.format("\tCenter: %b\n", center);
+            System.out.format("\tFunnel: %.3f\n", funnel);
+            System.out.format("\tRound Mold: %.3f\n", roundMold);
+            System.out.format("\tSquare Mold: %.3f\n", squareMold);
+            System.out.format("\tPositive: %b\n", positive);
+            System.out.format("\tWall Thickness: %.3f\n", wallThickness);
+            System.out.format("\tImageZero: %.3f\n", imageZero);
+            System.out.format("\tImageFilename: %s\n", imageFilename);
+            System.out.format("\tThreshold: %d\n", threshold);
+            System.out.format("\tLevels: %d\n", levels);
+            System.out.format("\tRotation Steps: %d\n", rotationSteps);
+            System.out.format("\tZ Step: %.3f\n", zStep);
+            System.out.format("\tOutputFilename: %s\n", outputFilename);
+            System.out.format("\tStream: %b\n", stream);
+            System.out.format("\tThreads: %d\n", threads);
+            System.out.format("\tMerge: %b\n", merge);
+            System.out.format("\tMapped: %b\n", mapped);
+            System.out.format("\tDraft: %b\n", draft);
+            System.out.format("\tCache: %s\n", cache);
+            System.out.format("\tMetrics: %s\n", metrics);
+            System.out.format("\tVerify: %b\n", verify);
+            System.out.format("\tVerify Baseline: %s\n", verifyBaseline);
+            System.out.format("\tRecord Baseline: %b\n", recordBaseline);
+            System.out.format("\tShard: %s\n", shard);
+            System.out.format("\tShard Facets: %d\n", shardFacets);
+            System.out.format("\tMemory Budget: %d\n", memoryBudget);
+        }
 
         BlankConfiguration blankConfiguration = new BlankConfiguration(units, length, tube, diameter, center, funnel, roundMold, squareMold, positive, wallThickness);
         blankConfiguration.setImageZero(imageZero);
         blankConfiguration.setImageFilename(imageFilename);
+        blankConfiguration.setThreshold(threshold);
+        blankConfiguration.setLevels(levels);
+        blankConfiguration.setRotationSteps(rotationSteps);
+        blankConfiguration.setZStep(zStep);
 
         Blanker blanker = new Blanker(blankConfiguration, outputFilename);
-        blanker.loadImage();
-        blanker.generateStl();
-        blanker.writeStl();
+        blanker.setStreaming(stream);
+        blanker.setThreads(threads);
+        blanker.setMerge(merge);
+        blanker.setMapped(mapped);
+        blanker.setDraft(draft);
+        blanker.setVerify(verify || verifyBaseline != null);
+        if (verifyBaseline != null) {
+            blanker.setVerifyBaseline(new File(verifyBaseline));
+            blanker.setRecordBaseline(recordBaseline);
+        }
+        blanker.setMemoryBudget(memoryBudget > 0 ? memoryBudget * 1024L * 1024L : Runtime.getRuntime().maxMemory() / Math.max(1, jobs));
+        if (!shard.equals("none")) {
+            blanker.setShards(ShardWriter.Mode.valueOf(shard.toUpperCase()), shardFacets);
+        }
+        if (metrics != null) {
+            blanker.setMetricsFile(new File(metrics));
+        }
+        if (cache != null) {
+            blanker.setCache(new MeshCache(new File(cache), cacheSize * 1024L * 1024L));
+        }
+        return blanker;
     }
 }
@@ -0,0 +1,241 @@
+package org.crazydays;
+
+import org.crazydays.stl.FacetBuffer;
+import org.crazydays.stl.Header;
+import org.crazydays.stl.StlWriter;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Content addressed store of finished STL files and of single mesh sections that any number of
+ * processes may share. Entries are written to a temporary file and renamed into place, so readers
+ * see a whole entry or none. Hits touch the modification time and the least recently used entries are evicted once the
+ * directory grows past maxBytes.
+ */
+public class MeshCache {
+    public final static String SUFFIX = ".stl";
+    public final static String SECTION_SUFFIX = ".facets";
+    public final static String TEMP_SUFFIX = ".tmp";
+    public final static long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    private final File directory;
+    private final long maxBytes;
+
+    public MeshCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+    }
+
+    public interface KeyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // SHA-256 in hex of everything the writer puts on the stream
+    public static String key(KeyWriter writer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(discard, digest))) {
+            writer.write(out);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Copies the entry to output with a new header, returns the facet count or -1 on a miss.
+     */
+    public int fetch(String key, File output, Header header) {
+        File entry = new File(directory, key + SUFFIX);
+        try (FileChannel in = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            entry.setLastModified(System.currentTimeMillis());
+
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (count.hasRemaining() && in.read(count, StlWriter.HEADER_SIZE + count.position()) >= 0) {
+            }
+            if (count.hasRemaining()) {
+                return -1;
+            }
+
+            try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(header.getBytes());
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                long position = StlWriter.HEADER_SIZE;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+            return count.getInt(0);
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            System.err.println(e);
+            return -1;
+        }
+    }
+
+    public void store(String key, File stl) {
+        File entry = new File(directory, key + SUFFIX);
+        if (entry.exists()) {
+            return;
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX);
+            Files.copy(stl.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println(e);
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+        evict();
+    }
+
+    /*
+     * Section entries are a facet count followed by STL facet records, returns null on a miss.
+     */
+    public FacetBuffer fetchSection(String key) {
+        File entry = new File(directory, key + SECTION_SUFFIX);
+        try (FileChannel in = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            entry.setLastModified(System.currentTimeMillis());
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+            int count = buffer.getInt();
+            if (buffer.remaining() != (long) count * StlWriter.FACET_SIZE) {
+                return null;
+            }
+            FacetBuffer facets = new FacetBuffer(count);
+            for (int i = 0; i < count; i++) {
+                facets.read(buffer);
+            }
+            return facets;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
+
+    public void storeSection(String key, List<FacetBuffer> parts) {
+        File entry = new File(directory, key + SECTION_SUFFIX);
+        if (entry.exists()) {
+            return;
+        }
+        int count = 0;
+        for (FacetBuffer part : parts) {
+            count += part.size();
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(StlWriter.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(count);
+                for (FacetBuffer part : parts) {
+                    for (int i = 0; i < part.size(); i++) {
+                        if (buffer.remaining() < StlWriter.FACET_SIZE) {
+                            drain(buffer, out);
+                        }
+                        part.write(buffer, i);
+                    }
+                }
+                drain(buffer, out);
+            }
+            Files.move(temp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println(e);
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+        evict();
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // another process may evict the same files, anything already gone is skipped
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long total = 0;
+        File[] entries = new File[files.length];
+        long[] modified = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                if (now - file.lastModified() > STALE_TEMP_MILLIS) {
+                    file.delete();
+                }
+            } else if (file.getName().endsWith(SUFFIX) || file.getName().endsWith(SECTION_SUFFIX)) {
+                total += file.length();
+                modified[count] = file.lastModified();
+                entries[count++] = file;
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        for (int i = 0; i < count && total > maxBytes; i++) {
+            File file = entries[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
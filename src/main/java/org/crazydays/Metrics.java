@@ -0,0 +1,232 @@
+package org.crazydays;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+ * Wall time, CPU time, allocated bytes, facets and bytes written per phase of one blank. CPU and
+ * allocation are per thread counters, work handed to pool threads is added through measure so a
+ * phase covers every thread that worked on it. Each phase is also committed as a JFR event.
+ */
+public class Metrics {
+    private final static com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<Phase> current = new ThreadLocal<>();
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if (threads.isThreadAllocatedMemorySupported() && !threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        return threads;
+    }
+
+    private static long cpuTime() {
+        return THREADS != null && THREADS.isThreadCpuTimeEnabled() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS != null && THREADS.isThreadAllocatedMemoryEnabled() ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    public Phase start(String name, long facets, long bytes) {
+        Phase phase = new Phase(name, facets, bytes);
+        phases.add(phase);
+        current.set(phase);
+        return phase;
+    }
+
+    public void end(Phase phase, long facets, long bytes) {
+        phase.end(facets, bytes);
+        if (current.get() == phase) {
+            current.remove();
+        }
+    }
+
+    // the phase started on this thread, phases of concurrent sections each run on their own
+    public Phase current() {
+        return current.get();
+    }
+
+    /*
+     * Runs work on a pool thread and charges its CPU time and allocation to phase. Work that ends
+     * up on the thread that started the phase is already counted by the phase itself.
+     */
+    public <T> T measure(Phase phase, Supplier<T> work) {
+        if (phase == null || phase.thread == Thread.currentThread()) {
+            return work.get();
+        }
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        try {
+            return work.get();
+        } finally {
+            phase.cpuNanos.addAndGet(cpuTime() - cpu);
+            phase.allocatedBytes.addAndGet(allocatedBytes() - allocated);
+        }
+    }
+
+    public void print(PrintStream out) {
+        out.format("%-28s %10s %10s %12s %10s %12s\n", "phase", "wall ms", "cpu ms", "allocated", "facets", "bytes");
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                out.format("%-28s %10.1f %10.1f %12d %10d %12d\n", phase.name, phase.getWallNanos() / 1e6, phase.getCpuNanos() / 1e6,
+                        phase.getAllocatedBytes(), phase.getFacets(), phase.getBytes());
+            }
+        }
+    }
+
+    public void writeJson(File file, String output) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("{\n");
+            writer.write(String.format("  \"output\": \"%s\",\n", escape(output)));
+            writer.write("  \"phases\": [");
+            synchronized (phases) {
+                for (int i = 0; i < phases.size(); i++) {
+                    Phase phase = phases.get(i);
+                    writer.write(i == 0 ? "\n" : ",\n");
+                    writer.write(String.format("    {\"name\": \"%s\", \"wallNanos\": %d, \"cpuNanos\": %d, \"allocatedBytes\": %d, \"facets\": %d, \"bytes\": %d}",
+                            escape(phase.name), phase.getWallNanos(), phase.getCpuNanos(), phase.getAllocatedBytes(), phase.getFacets(), phase.getBytes()));
+                }
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    public static class Phase {
+        private final String name;
+        private final Thread thread;
+        private final PhaseEvent event;
+        private final long startNanos;
+        private final long startFacets;
+        private final long startBytes;
+        private final long startCpu;
+        private final long startAllocated;
+        private final AtomicLong cpuNanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private long wallNanos;
+        private long facets;
+        private long bytes;
+
+        private Phase(String name, long facets, long bytes) {
+            this.name = name;
+            this.thread = Thread.currentThread();
+            this.event = new PhaseEvent();
+            this.event.begin();
+            this.startNanos = System.nanoTime();
+            this.startFacets = facets;
+            this.startBytes = bytes;
+            this.startCpu = cpuTime();
+            this.startAllocated = allocatedBytes();
+        }
+
+        private void end(long facets, long bytes) {
+            cpuNanos.addAndGet(cpuTime() - startCpu);
+            allocatedBytes.addAndGet(allocatedBytes() - startAllocated);
+            this.wallNanos = System.nanoTime() - startNanos;
+            this.facets = facets - startFacets;
+            this.bytes = bytes - startBytes;
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.cpuTime = cpuNanos.get();
+                event.allocated = allocatedBytes.get();
+                event.facets = this.facets;
+                event.bytesWritten = this.bytes;
+                event.commit();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos.get();
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes.get();
+        }
+
+        public long getFacets() {
+            return facets;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    @Name("org.crazydays.Phase")
+    @Label("Blanker Phase")
+    @Category("Blanker")
+    @Description("One phase of generating a blank")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("CPU Time")
+        @Timespan
+        long cpuTime;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        @Label("Facets")
+        long facets;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+}
@@ -0,0 +1,40 @@
+package org.crazydays;
+
+public enum OutputFormat {
+    STL(".stl"),
+    STL_GZIP(".stl.gz"),
+    STL_ZIP(".zip"),
+    OBJ(".obj"),
+    PLY(".ply"),
+    THREE_MF(".3mf");
+
+    private final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public boolean isIndexed() {
+        return this == OBJ || this == PLY || this == THREE_MF;
+    }
+
+    // binary STL written through a deflater
+    public boolean isCompressed() {
+        return this == STL_GZIP || this == STL_ZIP;
+    }
+
+    // anything without a known extension stays binary STL
+    public static OutputFormat forFilename(String filename) {
+        String lower = filename.toLowerCase();
+        for (OutputFormat format : values()) {
+            if (lower.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return STL;
+    }
+}
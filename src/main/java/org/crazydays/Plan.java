@@ -0,0 +1,106 @@
+package org.crazydays;
+
+import org.crazydays.stl.StlWriter;
+
+import java.io.PrintStream;
+
+/*
+ * Facet count, output size and peak heap of one blank, worked out before anything is generated.
+ * Until the pixels are decoded the walls between image and tube cells are unknown, so the facet
+ * count is a range from no walls to a wall on every cell edge. Merged meshes never have more
+ * facets than the unmerged count, which is what is planned for them.
+ */
+public class Plan {
+    // FacetBuffer grows by half, so a kept mesh holds up to 1.5 times its packed size
+    public final static int MESH_BYTES_PER_FACET = StlWriter.FACET_SIZE * 3 / 2;
+    // three vertex ids per triangle plus about half a vertex in VertexIndex
+    public final static int INDEXED_BYTES_PER_FACET = 52;
+    // MeshValidator's vertex table and edge table
+    public final static int VERIFY_BYTES_PER_FACET = 100;
+    public final static int DECODED_BYTES_PER_PIXEL = 4;
+
+    private final int rotations;
+    private final int columns;
+    private final long minFacets;
+    private final long maxFacets;
+    private final boolean merged;
+    private final String sink;
+    private final OutputFormat outputFormat;
+    private final long outputBytes;
+    private final long peakHeap;
+
+    Plan(int rotations, int columns, long minFacets, long maxFacets, boolean merged, String sink, OutputFormat outputFormat, long outputBytes, long peakHeap) {
+        this.rotations = rotations;
+        this.columns = columns;
+        this.minFacets = minFacets;
+        this.maxFacets = maxFacets;
+        this.merged = merged;
+        this.sink = sink;
+        this.outputFormat = outputFormat;
+        this.outputBytes = outputBytes;
+        this.peakHeap = peakHeap;
+    }
+
+    public int getRotations() {
+        return rotations;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public long getMinFacets() {
+        return minFacets;
+    }
+
+    // the exact count once the walls have been counted, unless merged
+    public long getMaxFacets() {
+        return maxFacets;
+    }
+
+    public boolean isExact() {
+        return minFacets == maxFacets && !merged;
+    }
+
+    // for maxFacets
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    // for maxFacets
+    public long getPeakHeap() {
+        return peakHeap;
+    }
+
+    /*
+     * Written size for a number of facets. Indexed formats are estimated with half a vertex per
+     * facet, as on any closed mesh, and compressed ones are at most the STL they hold.
+     */
+    static long outputBytes(OutputFormat outputFormat, long facets) {
+        long stl = StlWriter.HEADER_SIZE + 4 + (long) StlWriter.FACET_SIZE * facets;
+        switch (outputFormat) {
+            case PLY:
+                return 256 + 12 * facets / 2 + 13 * facets;
+            case OBJ:
+                return 33 * facets / 2 + 24 * facets;
+            case THREE_MF:
+                return 1024 + 60 * facets / 2 + 45 * facets;
+            default:
+                return stl;
+        }
+    }
+
+    public void print(PrintStream out) {
+        out.format("plan: rotations: %d columns: %d\n", rotations, columns);
+        if (merged) {
+            out.format("\tfacets: at most %d\n", maxFacets);
+        } else if (minFacets == maxFacets) {
+            out.format("\tfacets: %d\n", maxFacets);
+        } else {
+            out.format("\tfacets: %d - %d\n", minFacets, maxFacets);
+        }
+        out.format("\toutput bytes: %s%d\n", outputFormat.isCompressed() || outputFormat == OutputFormat.THREE_MF ? "at most " : "", outputBytes);
+        out.format("\tpeak heap: %.1f MB\n", peakHeap / (1024.0 * 1024.0));
+        out.format("\tsink: %s\n", sink);
+    }
+}
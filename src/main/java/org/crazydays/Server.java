@@ -0,0 +1,496 @@
+package org.crazydays;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps one warm JVM generating blanks for HTTP clients. POST /blank takes a flat JSON object
+ * whose keys are the blanker options (long names without the dashes) and answers with the binary
+ * STL. At most workers jobs run at once and queue more wait, anything beyond that is turned away
+ * with 503 so callers back off instead of piling up. Exchanges have their own bounded pool, with
+ * room for every running and queued job plus a few spare threads for rejections and metrics.
+ *
+ * Images are names below the image root, a name that resolves outside of it is refused. Jobs
+ * run on a single thread each and a grid of more than maxCells rotation steps times rows is
+ * refused before anything is allocated, so one request cannot take over the shared heap.
+ */
+public class Server {
+    public final static String COMMAND = "serve";
+    public final static int MAX_REQUEST_BYTES = 64 * 1024;
+    public final static int LATENCY_SAMPLES = 1024;
+    public final static int SPARE_EXCHANGES = 4;
+    // connections waiting for an exchange thread, more are closed
+    public final static int PENDING_EXCHANGES = 256;
+    public final static long DEFAULT_MAX_CELLS = 32L * 1024 * 1024;
+
+    // options that write next to the output path or plan the local heap, which means nothing to a
+    // remote caller, and threads, which --workers bounds for the whole server
+    private final static List<String> UNSUPPORTED = Arrays.asList("stream", "mapped", "metrics", "cache", "cacheSize", "verify", "verifyBaseline", "recordBaseline", "shard", "shardFacets", "plan", "memoryBudget", "threads");
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor jobs;
+    private final ExecutorService exchanges;
+    private final int queue;
+    private final int grace;
+    private final File imageRoot;
+    private final long maxCells;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Latency waiting = new Latency();
+    private final Latency latency = new Latency();
+
+    public Server(InetSocketAddress address, int workers, int queue, int grace, File imageRoot, long maxCells) throws IOException {
+        this.queue = Math.max(0, queue);
+        this.maxCells = maxCells;
+        this.grace = grace;
+        this.imageRoot = imageRoot.getCanonicalFile();
+        if (!this.imageRoot.isDirectory()) {
+            throw new IOException(String.format("Image root is not a directory: %s", imageRoot));
+        }
+        this.jobs = new ThreadPoolExecutor(Math.max(1, workers), Math.max(1, workers), 0L, TimeUnit.MILLISECONDS,
+                this.queue > 0 ? new ArrayBlockingQueue<>(this.queue) : new SynchronousQueue<>());
+        int exchangeThreads = Math.max(1, workers) + this.queue + SPARE_EXCHANGES;
+        this.exchanges = new ThreadPoolExecutor(exchangeThreads, exchangeThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PENDING_EXCHANGES));
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(exchanges);
+        this.server.createContext("/blank", this::blank);
+        this.server.createContext("/metrics", this::metrics);
+        this.server.createContext("/health", exchange -> respond(exchange, 200, "text/plain", "ok\n"));
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("blanker serve").build().defaultHelp(true).description("Generate blanks for HTTP clients from one long running process");
+        parser.addArgument("--bind").type(String.class).setDefault("127.0.0.1").help("Address to listen on");
+        parser.addArgument("--port").type(Integer.class).setDefault(8080).help("Port to listen on");
+        parser.addArgument("--workers").type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors()).help("Concurrent jobs");
+        parser.addArgument("--queue").type(Integer.class).setDefault(16).help("Jobs waiting for a worker before new ones are rejected");
+        parser.addArgument("--grace").type(Integer.class).setDefault(30).help("Seconds running jobs get to finish on shutdown");
+        parser.addArgument("--imageRoot").type(String.class).required(true).help("Directory the image names of requests are resolved in");
+        parser.addArgument("--maxCells").type(Long.class).setDefault(DEFAULT_MAX_CELLS).help("Most rotation steps times rows a request may ask for");
+
+        Namespace ns = null;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        }
+
+        Server server;
+        try {
+            server = new Server(new InetSocketAddress(ns.getString("bind"), ns.getInt("port")), ns.getInt("workers"), ns.getInt("queue"), ns.getInt("grace"),
+                    new File(ns.getString("imageRoot")), ns.getLong("maxCells"));
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+        System.out.format("Serving on %s:%d\n", ns.getString("bind"), server.getPort());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /*
+     * Stops accepting connections, then gives queued and running jobs what is left of the grace
+     * period to finish.
+     */
+    public void stop() {
+        System.out.println("Shutting down");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(grace);
+        jobs.shutdown();
+        server.stop(grace);
+        try {
+            if (!jobs.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                jobs.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            jobs.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        exchanges.shutdown();
+    }
+
+    private void blank(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "POST a JSON job\n");
+                return;
+            }
+
+            Map<String, String> options;
+            try {
+                options = Json.parseObject(read(exchange.getRequestBody()));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+                return;
+            }
+
+            List<String> args = new ArrayList<>();
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                if (UNSUPPORTED.contains(option.getKey())) {
+                    respond(exchange, 400, "text/plain", String.format("Unsupported option: %s\n", option.getKey()));
+                    return;
+                }
+                if (option.getValue() != null) {
+                    args.add("--" + option.getKey());
+                    args.add(option.getValue());
+                }
+            }
+
+            Blanker blanker;
+            String output;
+            try {
+                Namespace ns = Main.createParser("blanker").parseArgs(args.toArray(new String[0]));
+                if (ns.getString("image") == null) {
+                    respond(exchange, 400, "text/plain", "No image\n");
+                    return;
+                }
+                // resolved after parsing, so an abbreviated option name is checked too
+                File image = image(ns.getString("image"));
+                if (image == null) {
+                    respond(exchange, 403, "text/plain", String.format("Image outside the image root: %s\n", ns.getString("image")));
+                    return;
+                }
+                if (!image.isFile()) {
+                    respond(exchange, 404, "text/plain", String.format("No such image: %s\n", ns.getString("image")));
+                    return;
+                }
+                ns.getAttrs().put("image", image.getPath());
+                if (OutputFormat.forFilename(ns.getString("output")) != OutputFormat.STL) {
+                    respond(exchange, 400, "text/plain", "Only STL output is served\n");
+                    return;
+                }
+                blanker = Main.createBlanker(ns, false);
+                // the response is written from the mesh in memory, it cannot be streamed to a file
+                blanker.setMemoryBudget(0);
+                output = new File(ns.getString("output")).getName();
+                long cells;
+                try {
+                    cells = blanker.gridCellsFromHeader();
+                } catch (IOException e) {
+                    respond(exchange, 400, "text/plain", String.format("Unreadable image: %s\n", e.getLocalizedMessage()));
+                    return;
+                }
+                if (cells > maxCells) {
+                    respond(exchange, 400, "text/plain", String.format("Grid of %d cells is over the limit of %d\n", cells, maxCells));
+                    return;
+                }
+            } catch (ArgumentParserException e) {
+                respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+                return;
+            }
+
+            Future<Blank> result;
+            try {
+                result = jobs.submit(() -> {
+                    waiting.add(System.nanoTime() - start);
+                    blanker.loadImage();
+                    if (!blanker.isImageLoaded()) {
+                        throw new IOException("Unreadable image");
+                    }
+                    blanker.generateStl();
+                    return blanker.getBlank();
+                });
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "text/plain", "Too many jobs\n");
+                return;
+            }
+
+            Blank blank;
+            try {
+                blank = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.cancel(true);
+                failed.incrementAndGet();
+                respond(exchange, 503, "text/plain", "Shutting down\n");
+                return;
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                if (e.getCause() instanceof IOException) {
+                    respond(exchange, 400, "text/plain", e.getCause().getLocalizedMessage() + "\n");
+                } else {
+                    respond(exchange, 500, "text/plain", e.getCause() + "\n");
+                }
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "model/stl");
+            exchange.getResponseHeaders().set("Content-Disposition", String.format("attachment; filename=\"%s\"", output.replace("\"", "")));
+            exchange.sendResponseHeaders(200, blank.getByteCount());
+            try (OutputStream body = exchange.getResponseBody()) {
+                blank.write(body);
+            }
+            completed.incrementAndGet();
+            latency.add(System.nanoTime() - start);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the name resolved below the image root, symbolic links included, or null when it leaves it
+    File image(String name) throws IOException {
+        File image = new File(imageRoot, name).getCanonicalFile();
+        return image.toPath().startsWith(imageRoot.toPath()) && !image.equals(imageRoot) ? image : null;
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("workers", jobs.getMaximumPoolSize());
+        metrics.put("active", jobs.getActiveCount());
+        metrics.put("queued", jobs.getQueue().size());
+        metrics.put("queueCapacity", queue);
+        metrics.put("completed", completed.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("failed", failed.get());
+        metrics.put("queueWait", waiting.summary());
+        metrics.put("latency", latency.summary());
+        respond(exchange, 200, "application/json", Json.write(metrics) + "\n");
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+            if (bytes.size() > MAX_REQUEST_BYTES) {
+                throw new IllegalArgumentException("Request too large");
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /*
+     * Count, mean and max of every sample, percentiles over the most recent LATENCY_SAMPLES.
+     */
+    static class Latency {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void add(long nanos) {
+            samples[(int) (count % samples.length)] = nanos;
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        synchronized Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            int size = (int) Math.min(count, samples.length);
+            long[] recent = Arrays.copyOf(samples, size);
+            Arrays.sort(recent);
+            summary.put("count", count);
+            summary.put("meanMillis", count > 0 ? total / count / 1e6 : 0.0);
+            summary.put("maxMillis", max / 1e6);
+            summary.put("p50Millis", size > 0 ? recent[(size - 1) / 2] / 1e6 : 0.0);
+            summary.put("p99Millis", size > 0 ? recent[(int) Math.ceil(size * 0.99) - 1] / 1e6 : 0.0);
+            return summary;
+        }
+    }
+
+    /*
+     * Just enough JSON for flat job objects in and metrics out.
+     */
+    static class Json {
+        private final String text;
+        private int index;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        // scalar values come back as the strings the command line parser expects, null stays null
+        static Map<String, String> parseObject(String text) {
+            Json json = new Json(text);
+            Map<String, String> object = new LinkedHashMap<>();
+            json.expect('{');
+            if (json.peek() == '}') {
+                json.index++;
+            } else {
+                while (true) {
+                    String key = json.string();
+                    json.expect(':');
+                    object.put(key, json.scalar());
+                    char next = json.next();
+                    if (next == '}') {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw json.error("Expected , or }");
+                    }
+                }
+            }
+            if (json.peek() != 0) {
+                throw json.error("Trailing characters");
+            }
+            return object;
+        }
+
+        private String scalar() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            int start = index;
+            while (index < text.length() && ",}] \t\r\n".indexOf(text.charAt(index)) < 0) {
+                index++;
+            }
+            String value = text.substring(start, index);
+            if (value.equals("null")) {
+                return null;
+            }
+            if (value.equals("true") || value.equals("false") || value.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+                return value;
+            }
+            throw error("Expected a string, number, boolean or null");
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (index < text.length()) {
+                char c = text.charAt(index++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (index >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(index++);
+                switch (escaped) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (index + 4 > text.length()) {
+                            throw error("Bad escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(index, index + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad escape");
+                        }
+                        index += 4;
+                        break;
+                    default: value.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                throw error("Expected " + c);
+            }
+        }
+
+        private char next() {
+            char c = peek();
+            if (c != 0) {
+                index++;
+            }
+            return c;
+        }
+
+        private char peek() {
+            while (index < text.length() && Character.isWhitespace(text.charAt(index))) {
+                index++;
+            }
+            return index < text.length() ? text.charAt(index) : 0;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at %d", message, index));
+        }
+
+        @SuppressWarnings("unchecked")
+        static String write(Object value) {
+            if (value instanceof Map) {
+                StringBuilder out = new StringBuilder("{");
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    if (out.length() > 1) {
+                        out.append(", ");
+                    }
+                    out.append(write(entry.getKey())).append(": ").append(write(entry.getValue()));
+                }
+                return out.append('}').toString();
+            }
+            if (value instanceof String) {
+                StringBuilder out = new StringBuilder("\"");
+                for (char c : ((String) value).toCharArray()) {
+                    if (c == '"' || c == '\\') {
+                        out.append('\\').append(c);
+                    } else if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+                return out.append('"').toString();
+            }
+            if (value instanceof Double) {
+                return String.format(Locale.ROOT, "%.3f", (Double) value);
+            }
+            return String.valueOf(value);
+        }
+    }
+}
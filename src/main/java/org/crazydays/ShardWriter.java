@@ -0,0 +1,309 @@
+package org.crazydays;
+
+import org.crazydays.stl.FacetBuffer;
+import org.crazydays.stl.FacetSink;
+import org.crazydays.stl.Header;
+import org.crazydays.stl.StlWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ * Splits a finished mesh into binary STL shards written in parallel, plus a JSON manifest listing
+ * every shard with its facet count and bounds. Shards are cut by generate section, by equal z
+ * slabs of the facet centroids or simply every maxFacets facets, and no shard holds more than
+ * maxFacets. Facets are never clipped, so the shards together are exactly the mesh.
+ */
+public class ShardWriter {
+    public final static String MANIFEST_SUFFIX = ".manifest.json";
+
+    public enum Mode {
+        SECTION,
+        SLAB,
+        FACETS
+    }
+
+    private final File output;
+    private final Mode mode;
+    private final int maxFacets;
+    private final int threads;
+
+    public ShardWriter(File output, Mode mode, int maxFacets, int threads) {
+        this.output = output;
+        this.mode = mode;
+        this.maxFacets = Math.max(1, maxFacets);
+        this.threads = Math.max(1, threads);
+    }
+
+    // blank.stl is cut into blank-<label>.stl next to blank.manifest.json
+    private String base() {
+        String path = output.getPath();
+        return path.toLowerCase().endsWith(OutputFormat.STL.getExtension()) ? path.substring(0, path.length() - OutputFormat.STL.getExtension().length()) : path;
+    }
+
+    public File getManifest() {
+        return new File(base() + MANIFEST_SUFFIX);
+    }
+
+    public List<Shard> write(List<FacetBuffer> parts, List<Range> sections) throws IOException {
+        int total = 0;
+        for (FacetBuffer part : parts) {
+            total += part.size();
+        }
+
+        List<Task> tasks = new ArrayList<>();
+        switch (mode) {
+            case SECTION:
+                for (Range section : sections) {
+                    if (section.to > section.from) {
+                        tasks.add(new Task(section.label, section.from, section.to));
+                    }
+                }
+                break;
+            case SLAB:
+                Slabs slabs = new Slabs(parts, (total + maxFacets - 1) / maxFacets);
+                for (int slab = 0; slab < slabs.count; slab++) {
+                    tasks.add(new Task(String.format("slab%02d", slab), Arrays.copyOf(slabs.runs[slab], slabs.sizes[slab])));
+                }
+                break;
+            case FACETS:
+                for (int from = 0, shard = 0; from < total; from += maxFacets, shard++) {
+                    tasks.add(new Task(String.format("%03d", shard), from, (int) Math.min(total, (long) from + maxFacets)));
+                }
+                break;
+        }
+
+        List<Shard> shards = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<List<Shard>>> running = new ArrayList<>();
+            for (Task task : tasks) {
+                running.add(pool.submit(() -> task.write(parts)));
+            }
+            for (ForkJoinTask<List<Shard>> task : running) {
+                shards.addAll(task.join());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        writeManifest(shards, total);
+        return shards;
+    }
+
+    private void writeManifest(List<Shard> shards, int total) throws IOException {
+        try (Writer writer = new FileWriter(getManifest())) {
+            writer.write("{\n");
+            writer.write(String.format("  \"output\": \"%s\",\n", Metrics.escape(output.getName())));
+            writer.write(String.format("  \"mode\": \"%s\",\n", mode.name().toLowerCase()));
+            writer.write(String.format("  \"maxFacets\": %d,\n", maxFacets));
+            writer.write(String.format("  \"facets\": %d,\n", total));
+            writer.write("  \"shards\": [");
+            for (int i = 0; i < shards.size(); i++) {
+                Shard shard = shards.get(i);
+                float[] bounds = shard.bounds;
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write(String.format("    {\"file\": \"%s\", \"label\": \"%s\", \"facets\": %d, \"bytes\": %d, \"min\": [%s, %s, %s], \"max\": [%s, %s, %s]}",
+                        Metrics.escape(shard.file.getName()), Metrics.escape(shard.label), shard.facets, shard.file.length(),
+                        bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]));
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    // facets [from, to) of the whole mesh, in generation order
+    public static class Range {
+        private final String label;
+        private final int from;
+        private final int to;
+
+        public Range(String label, int from, int to) {
+            this.label = label;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public static class Shard {
+        private final File file;
+        private final String label;
+        private final int facets;
+        private final float[] bounds;
+
+        private Shard(File file, String label, int facets, float[] bounds) {
+            this.file = file;
+            this.label = label;
+            this.facets = facets;
+            this.bounds = bounds;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getFacets() {
+            return facets;
+        }
+    }
+
+    /*
+     * Equal height slabs between the lowest and highest facet centroid, every facet lands in
+     * exactly one slab. One pass finds the centroid range, a second one collects the runs of
+     * consecutive facets in each slab, so every slab is written from its own runs only.
+     */
+    private static class Slabs implements FacetSink {
+        private final int count;
+        private float min = Float.MAX_VALUE;
+        private float max = -Float.MAX_VALUE;
+        // per slab, from and to of each run of facets
+        private final int[][] runs;
+        private final int[] sizes;
+        private boolean measured;
+        private int facet;
+        private int previous = -1;
+
+        private Slabs(List<FacetBuffer> parts, int count) {
+            this.count = Math.max(1, count);
+            this.runs = new int[this.count][16];
+            this.sizes = new int[this.count];
+            for (FacetBuffer part : parts) {
+                part.writeTo(this);
+            }
+            measured = true;
+            for (FacetBuffer part : parts) {
+                part.writeTo(this);
+            }
+        }
+
+        @Override
+        public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+            if (!measured) {
+                float z = (az + bz + cz) / 3;
+                min = Math.min(min, z);
+                max = Math.max(max, z);
+                return;
+            }
+
+            int slab = slab(az, bz, cz);
+            if (slab == previous) {
+                runs[slab][sizes[slab] - 1] = facet + 1;
+            } else {
+                if (sizes[slab] == runs[slab].length) {
+                    runs[slab] = Arrays.copyOf(runs[slab], runs[slab].length * 2);
+                }
+                runs[slab][sizes[slab]++] = facet;
+                runs[slab][sizes[slab]++] = facet + 1;
+                previous = slab;
+            }
+            facet++;
+        }
+
+        private int slab(float az, float bz, float cz) {
+            float height = (max - min) / count;
+            if (height <= 0) {
+                return 0;
+            }
+            return Math.max(0, Math.min(count - 1, (int) (((az + bz + cz) / 3 - min) / height)));
+        }
+    }
+
+    /*
+     * Writes ranges of the mesh, from and to pairs in generation order, starting a new file every
+     * maxFacets facets.
+     */
+    private class Task implements FacetSink {
+        private final String label;
+        private final int[] ranges;
+        private final List<Shard> shards = new ArrayList<>();
+
+        private StlWriter writer;
+        private File file;
+        private float[] bounds;
+
+        private Task(String label, int from, int to) {
+            this(label, new int[]{from, to});
+        }
+
+        private Task(String label, int[] ranges) {
+            this.label = label;
+            this.ranges = ranges;
+        }
+
+        private List<Shard> write(List<FacetBuffer> parts) {
+            try {
+                int part = 0;
+                int offset = 0;
+                for (int range = 0; range < ranges.length; range += 2) {
+                    int from = ranges[range];
+                    int to = ranges[range + 1];
+                    while (offset + parts.get(part).size() <= from) {
+                        offset += parts.get(part++).size();
+                    }
+                    for (int next = part, start = offset; start < to; start += parts.get(next++).size()) {
+                        int first = Math.max(from - start, 0);
+                        int end = Math.min(to - start, parts.get(next).size());
+                        if (first < end) {
+                            parts.get(next).writeTo(this, first, end);
+                        }
+                    }
+                }
+                finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return shards;
+        }
+
+        @Override
+        public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+            try {
+                if (writer == null) {
+                    file = new File(String.format("%s-%s%s.stl", base(), label, shards.isEmpty() ? "" : "-" + shards.size()));
+                    writer = new StlWriter(file, new Header("Blanker", file.getName()));
+                    bounds = new float[]{Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+                }
+                writer.addFacet(nx, ny, nz, ax, ay, az, bx, by, bz, cx, cy, cz, attributeByteCount);
+                include(ax, ay, az);
+                include(bx, by, bz);
+                include(cx, cy, cz);
+                if (writer.getCount() == maxFacets) {
+                    finish();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void include(float x, float y, float z) {
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.min(bounds[2], z);
+            bounds[3] = Math.max(bounds[3], x);
+            bounds[4] = Math.max(bounds[4], y);
+            bounds[5] = Math.max(bounds[5], z);
+        }
+
+        private void finish() throws IOException {
+            if (writer == null) {
+                return;
+            }
+            writer.close();
+            shards.add(new Shard(file, label, writer.getCount(), bounds));
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,835 @@
+package org.crazydays;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Filled SVG shapes (path, polygon, polyline, rect, circle and ellipse) scan converted straight into an
+ * ImageMask. One user unit of the view box is one image pixel, so the natural size matches a 1:1 PNG
+ * export of the same document. Shapes are painted in document order: a fill the raster threshold
+ * takes as black sets its pixels and any other opaque fill clears them, as light shapes cut out of
+ * the artwork. Strokes, text, <use>, clipping and gradients (taken as black) are not drawn.
+ *
+ * The document is parsed with doctypes refused, so neither external nor internal entities are
+ * ever resolved.
+ */
+public class SvgRasterizer {
+    // maximum distance in user units between a flattened curve and the true curve
+    public final static float FLATNESS = 0.05f;
+
+    private final static int MAX_DEPTH = 16;
+    private final static int BLACK = 0xff000000;
+    // no fill, a colour with 0 alpha would still be a fill
+    private final static int NONE = 0x00ffffff;
+    private final static Map<String, Integer> COLORS = new HashMap<>();
+
+    static {
+        // the basic keywords, the rest of the CSS names are rare in artwork meant for engraving
+        String[] names = { "black", "silver", "gray", "grey", "white", "maroon", "red", "purple", "fuchsia",
+                "green", "lime", "olive", "yellow", "navy", "blue", "teal", "aqua" };
+        int[] values = { 0x000000, 0xc0c0c0, 0x808080, 0x808080, 0xffffff, 0x800000, 0xff0000, 0x800080, 0xff00ff,
+                0x008000, 0x00ff00, 0x808000, 0xffff00, 0x000080, 0x0000ff, 0x008080, 0x00ffff };
+        for (int i = 0; i < names.length; i++) {
+            COLORS.put(names[i], values[i]);
+        }
+    }
+
+    private final double viewX;
+    private final double viewY;
+    private final double width;
+    private final double height;
+    private final List<Shape> shapes = new ArrayList<>();
+
+    private SvgRasterizer(double viewX, double viewY, double width, double height) {
+        this.viewX = viewX;
+        this.viewY = viewY;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static boolean isSvg(File file) {
+        return file.getName().toLowerCase().endsWith(".svg");
+    }
+
+    public static SvgRasterizer read(File file) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            factory.setXIncludeAware(false);
+            factory.setExpandEntityReferences(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(file);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(String.format("Unsupported svg: %s: %s", file, e.getLocalizedMessage()), e);
+        }
+
+        Element root = document.getDocumentElement();
+        if (!"svg".equals(root.getLocalName())) {
+            throw new IOException(String.format("Unsupported svg: %s", file));
+        }
+
+        double[] viewBox = numbers(root.getAttribute("viewBox"));
+        SvgRasterizer svg;
+        if (viewBox.length == 4) {
+            svg = new SvgRasterizer(viewBox[0], viewBox[1], viewBox[2], viewBox[3]);
+        } else {
+            svg = new SvgRasterizer(0, 0, length(root, "width", 0), length(root, "height", 0));
+        }
+        if (!(svg.width > 0) || !(svg.height > 0)) {
+            throw new IOException(String.format("Svg without a size: %s", file));
+        }
+
+        svg.visit(root, new double[] { 1, 0, 0, 1, 0, 0 }, false, BLACK);
+        return svg;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    /*
+     * Pixel centers inside a dark shape are set and those inside a light one cleared, the view box
+     * is stretched over columns x rows. Translucent light shapes leave what is below them.
+     */
+    public ImageMask rasterize(int columns, int rows, float columnStep, int threshold) {
+        ImageMask mask = new ImageMask(columns, rows, columnStep);
+        double sx = columns / width;
+        double sy = rows / height;
+        for (Shape shape : shapes) {
+            if (ImageMask.isBlack(shape.fill, threshold)) {
+                fill(mask, shape, sx, sy, true);
+            } else if (shape.fill >>> 24 == 0xff) {
+                fill(mask, shape, sx, sy, false);
+            }
+        }
+        return mask;
+    }
+
+    private void fill(ImageMask mask, Shape shape, double sx, double sy, boolean dark) {
+        int rows = mask.getHeight();
+        int columns = mask.getWidth();
+
+        // edges in pixel space as x0, y0, x1, y1 with y0 < y1 and a winding direction
+        int count = 0;
+        for (float[] ring : shape.rings) {
+            count += ring.length / 2;
+        }
+        double[] edges = new double[count * 4];
+        int[] winding = new int[count];
+        int[][] starts = new int[rows][];
+        int[] startCounts = new int[rows];
+        int edgeCount = 0;
+        for (float[] ring : shape.rings) {
+            int n = ring.length / 2;
+            for (int i = 0; i < n; i++) {
+                int j = (i + 1) % n;
+                double x0 = (ring[i * 2] - viewX) * sx;
+                double y0 = (ring[i * 2 + 1] - viewY) * sy;
+                double x1 = (ring[j * 2] - viewX) * sx;
+                double y1 = (ring[j * 2 + 1] - viewY) * sy;
+                if (y0 == y1) {
+                    continue;
+                }
+                int direction = 1;
+                if (y0 > y1) {
+                    double t = x0; x0 = x1; x1 = t;
+                    t = y0; y0 = y1; y1 = t;
+                    direction = -1;
+                }
+                int first = Math.max(0, (int) Math.ceil(y0 - 0.5));
+                int last = Math.min(rows, (int) Math.ceil(y1 - 0.5));
+                if (first >= last) {
+                    continue;
+                }
+                edges[edgeCount * 4] = x0;
+                edges[edgeCount * 4 + 1] = y0;
+                edges[edgeCount * 4 + 2] = x1;
+                edges[edgeCount * 4 + 3] = y1;
+                winding[edgeCount] = direction;
+                if (starts[first] == null) {
+                    starts[first] = new int[4];
+                } else if (startCounts[first] == starts[first].length) {
+                    starts[first] = Arrays.copyOf(starts[first], startCounts[first] * 2);
+                }
+                starts[first][startCounts[first]++] = edgeCount;
+                edgeCount++;
+            }
+        }
+
+        int[] active = new int[Math.max(1, edgeCount)];
+        int activeCount = 0;
+        double[] crossings = new double[Math.max(1, edgeCount)];
+        int[] directions = new int[Math.max(1, edgeCount)];
+        for (int y = 0; y < rows; y++) {
+            double center = y + 0.5;
+            for (int i = 0; i < startCounts[y]; i++) {
+                active[activeCount++] = starts[y][i];
+            }
+
+            int crossingCount = 0;
+            for (int i = 0; i < activeCount; ) {
+                int e = active[i];
+                if (edges[e * 4 + 3] <= center) {
+                    active[i] = active[--activeCount];
+                    continue;
+                }
+                double x0 = edges[e * 4];
+                double y0 = edges[e * 4 + 1];
+                double x = x0 + (center - y0) * (edges[e * 4 + 2] - x0) / (edges[e * 4 + 3] - y0);
+
+                // insertion keeps the crossings sorted, a row only crosses a handful of edges
+                int k = crossingCount++;
+                while (k > 0 && crossings[k - 1] > x) {
+                    crossings[k] = crossings[k - 1];
+                    directions[k] = directions[k - 1];
+                    k--;
+                }
+                crossings[k] = x;
+                directions[k] = winding[e];
+                i++;
+            }
+
+            int total = 0;
+            double spanStart = 0;
+            for (int i = 0; i < crossingCount; i++) {
+                boolean wasInside = shape.isInside(total);
+                total += directions[i];
+                boolean inside = shape.isInside(total);
+                if (!wasInside && inside) {
+                    spanStart = crossings[i];
+                } else if (wasInside && !inside) {
+                    int from = Math.max(0, (int) Math.ceil(spanStart - 0.5));
+                    int to = Math.min(columns, (int) Math.ceil(crossings[i] - 0.5));
+                    if (from < to && dark) {
+                        mask.setSpan(y, from, to);
+                    } else if (from < to) {
+                        mask.clearSpan(y, from, to);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visit(Element element, double[] transform, boolean evenOdd, int fill) {
+        String name = element.getLocalName();
+        if ("defs".equals(name) || "clipPath".equals(name) || "mask".equals(name) || "symbol".equals(name)
+                || "pattern".equals(name) || "marker".equals(name)) {
+            return;
+        }
+        if ("none".equals(style(element, "display"))) {
+            return;
+        }
+
+        String transformAttribute = element.getAttribute("transform");
+        if (!transformAttribute.isEmpty()) {
+            transform = multiply(transform, parseTransform(transformAttribute));
+        }
+
+        String fillRule = style(element, "fill-rule");
+        if (fillRule != null) {
+            evenOdd = fillRule.equals("evenodd");
+        }
+
+        fill = fill(element, fill);
+
+        // children of an unfilled group may still set their own fill
+        if (fill != NONE) {
+            Shape shape = null;
+            if ("path".equals(name)) {
+                shape = new PathParser(element.getAttribute("d"), transform).parse();
+            } else if ("polygon".equals(name) || "polyline".equals(name)) {
+                shape = polygon(numbers(element.getAttribute("points")), transform);
+            } else if ("rect".equals(name)) {
+                double x = length(element, "x", 0);
+                double y = length(element, "y", 0);
+                double w = length(element, "width", 0);
+                double h = length(element, "height", 0);
+                if (w > 0 && h > 0) {
+                    shape = polygon(new double[] { x, y, x + w, y, x + w, y + h, x, y + h }, transform);
+                }
+            } else if ("circle".equals(name) || "ellipse".equals(name)) {
+                double r = length(element, "r", 0);
+                double rx = "circle".equals(name) ? r : length(element, "rx", 0);
+                double ry = "circle".equals(name) ? r : length(element, "ry", 0);
+                if (rx > 0 && ry > 0) {
+                    shape = new Shape();
+                    Ring ring = new Ring();
+                    arc(ring, transform, length(element, "cx", 0), length(element, "cy", 0), rx, ry, 0, 0, 2 * Math.PI);
+                    shape.add(ring);
+                }
+            }
+            if (shape != null) {
+                shape.evenOdd = evenOdd;
+                shape.fill = fill;
+                shapes.add(shape);
+            }
+        }
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                visit((Element) child, transform, evenOdd, fill);
+            }
+        }
+    }
+
+    private static Shape polygon(double[] points, double[] transform) {
+        if (points.length < 6) {
+            return null;
+        }
+        Ring ring = new Ring();
+        for (int i = 0; i + 1 < points.length; i += 2) {
+            ring.add(transform, points[i], points[i + 1]);
+        }
+        Shape shape = new Shape();
+        shape.add(ring);
+        return shape;
+    }
+
+    /*
+     * Fill colour as ARGB with fill-opacity in the alpha, both inherited from the parent. Paint
+     * servers, currentColor and colours that are not understood keep the default black.
+     */
+    private static int fill(Element element, int inherited) {
+        int fill = inherited;
+        String value = style(element, "fill");
+        if (value != null && !value.equals("inherit")) {
+            if (value.equals("none")) {
+                fill = NONE;
+            } else if (value.equals("transparent")) {
+                fill = 0;
+            } else {
+                fill = color(value) | 0xff000000;
+            }
+        }
+        String opacity = style(element, "fill-opacity");
+        if (fill != NONE && opacity != null) {
+            double[] alpha = numbers(opacity);
+            if (alpha.length > 0) {
+                double scaled = opacity.endsWith("%") ? alpha[0] / 100 : alpha[0];
+                fill = (int) Math.round(Math.max(0, Math.min(1, scaled)) * 255) << 24 | (fill & 0xffffff);
+            }
+        }
+        return fill;
+    }
+
+    private static int color(String value) {
+        String color = value.toLowerCase();
+        try {
+            if (color.startsWith("#") && color.length() == 4) {
+                int rgb = Integer.parseInt(color.substring(1), 16);
+                return (rgb >> 8 & 0xf) * 0x110000 | (rgb >> 4 & 0xf) * 0x1100 | (rgb & 0xf) * 0x11;
+            }
+            if (color.startsWith("#") && color.length() == 7) {
+                return Integer.parseInt(color.substring(1), 16);
+            }
+        } catch (NumberFormatException e) {
+            return BLACK;
+        }
+        if (color.startsWith("rgb(")) {
+            double[] channels = numbers(color.substring(4).replace('%', ' '));
+            if (channels.length == 3) {
+                int rgb = 0;
+                for (double channel : channels) {
+                    double scaled = color.contains("%") ? channel * 255 / 100 : channel;
+                    rgb = rgb << 8 | (int) Math.round(Math.max(0, Math.min(255, scaled)));
+                }
+                return rgb;
+            }
+            return BLACK;
+        }
+        Integer named = COLORS.get(color);
+        return named != null ? named : BLACK;
+    }
+
+    // presentation attribute, overridden by the same property in the style attribute
+    private static String style(Element element, String property) {
+        String value = null;
+        if (element.hasAttribute(property)) {
+            value = element.getAttribute(property).trim();
+        }
+        for (String declaration : element.getAttribute("style").split(";")) {
+            int colon = declaration.indexOf(':');
+            if (colon > 0 && declaration.substring(0, colon).trim().equals(property)) {
+                value = declaration.substring(colon + 1).trim();
+            }
+        }
+        return value;
+    }
+
+    // leading number of a length attribute, units are ignored
+    private static double length(Element element, String attribute, double defaultValue) {
+        double[] numbers = numbers(element.getAttribute(attribute));
+        return numbers.length > 0 ? numbers[0] : defaultValue;
+    }
+
+    private static double[] numbers(String value) {
+        PathParser parser = new PathParser(value, null);
+        double[] numbers = new double[8];
+        int count = 0;
+        try {
+            while (parser.hasNumber()) {
+                if (count == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, count * 2);
+                }
+                numbers[count++] = parser.number();
+            }
+        } catch (IllegalArgumentException e) {
+            // keep the numbers before the malformed one
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+
+    /*
+     * Affine transforms are {a, b, c, d, e, f}: x' = a x + c y + e, y' = b x + d y + f.
+     */
+    private static double[] multiply(double[] m, double[] n) {
+        return new double[] {
+                m[0] * n[0] + m[2] * n[1],
+                m[1] * n[0] + m[3] * n[1],
+                m[0] * n[2] + m[2] * n[3],
+                m[1] * n[2] + m[3] * n[3],
+                m[0] * n[4] + m[2] * n[5] + m[4],
+                m[1] * n[4] + m[3] * n[5] + m[5]
+        };
+    }
+
+    private static double[] parseTransform(String value) {
+        double[] transform = { 1, 0, 0, 1, 0, 0 };
+        int index = 0;
+        while (true) {
+            int open = value.indexOf('(', index);
+            int close = value.indexOf(')', open + 1);
+            if (open < 0 || close < 0) {
+                return transform;
+            }
+            String function = value.substring(index, open).replace(',', ' ').trim();
+            double[] args = numbers(value.substring(open + 1, close));
+            double[] next = null;
+            if (function.equals("matrix") && args.length == 6) {
+                next = args;
+            } else if (function.equals("translate") && args.length >= 1) {
+                next = new double[] { 1, 0, 0, 1, args[0], args.length > 1 ? args[1] : 0 };
+            } else if (function.equals("scale") && args.length >= 1) {
+                next = new double[] { args[0], 0, 0, args.length > 1 ? args[1] : args[0], 0, 0 };
+            } else if (function.equals("rotate") && args.length >= 1) {
+                double angle = Math.toRadians(args[0]);
+                double cos = Math.cos(angle);
+                double sin = Math.sin(angle);
+                next = new double[] { cos, sin, -sin, cos, 0, 0 };
+                if (args.length == 3) {
+                    next = multiply(multiply(new double[] { 1, 0, 0, 1, args[1], args[2] }, next),
+                            new double[] { 1, 0, 0, 1, -args[1], -args[2] });
+                }
+            } else if (function.equals("skewX") && args.length == 1) {
+                next = new double[] { 1, 0, Math.tan(Math.toRadians(args[0])), 1, 0, 0 };
+            } else if (function.equals("skewY") && args.length == 1) {
+                next = new double[] { 1, Math.tan(Math.toRadians(args[0])), 0, 1, 0, 0 };
+            }
+            if (next != null) {
+                transform = multiply(transform, next);
+            }
+            index = close + 1;
+        }
+    }
+
+    /*
+     * Elliptical arc around (cx, cy) from angle start through sweep, rx along the rotated x axis.
+     */
+    private static void arc(Ring ring, double[] transform, double cx, double cy, double rx, double ry, double rotation, double start, double sweep) {
+        double cos = Math.cos(rotation);
+        double sin = Math.sin(rotation);
+        double scale = Math.sqrt(Math.abs(transform[0] * transform[3] - transform[1] * transform[2]));
+        double radius = Math.max(rx, ry) * scale;
+        double step = radius > FLATNESS ? 2 * Math.acos(1 - FLATNESS / radius) : Math.PI / 2;
+        int segments = Math.max(4, Math.min(1 << MAX_DEPTH, (int) Math.ceil(Math.abs(sweep) / step)));
+        for (int i = 1; i <= segments; i++) {
+            double angle = start + sweep * i / segments;
+            double x = rx * Math.cos(angle);
+            double y = ry * Math.sin(angle);
+            ring.add(transform, cx + x * cos - y * sin, cy + x * sin + y * cos);
+        }
+    }
+
+    private static class Shape {
+        private final List<float[]> rings = new ArrayList<>();
+        private boolean evenOdd;
+        private int fill;
+
+        private boolean isInside(int winding) {
+            return evenOdd ? (winding & 1) != 0 : winding != 0;
+        }
+
+        private void add(Ring ring) {
+            if (ring.count >= 6) {
+                rings.add(Arrays.copyOf(ring.points, ring.count));
+            }
+        }
+    }
+
+    // growable list of transformed points
+    private static class Ring {
+        private float[] points = new float[32];
+        private int count;
+
+        private void add(double[] transform, double x, double y) {
+            addTransformed(transform[0] * x + transform[2] * y + transform[4], transform[1] * x + transform[3] * y + transform[5]);
+        }
+
+        private void addTransformed(double x, double y) {
+            if (count == points.length) {
+                points = Arrays.copyOf(points, count * 2);
+            }
+            points[count++] = (float) x;
+            points[count++] = (float) y;
+        }
+
+        private double lastX() {
+            return points[count - 2];
+        }
+
+        private double lastY() {
+            return points[count - 1];
+        }
+    }
+
+    /*
+     * Path data with all of M, L, H, V, C, S, Q, T, A and Z in absolute and relative form. Curves are
+     * transformed first and flattened in view box units.
+     */
+    private static class PathParser {
+        private final String data;
+        private final double[] transform;
+        private int index;
+
+        private Shape shape;
+        private Ring ring;
+        private double x;
+        private double y;
+        private double startX;
+        private double startY;
+        private double controlX;
+        private double controlY;
+        private char previous;
+
+        private PathParser(String data, double[] transform) {
+            this.data = data;
+            this.transform = transform;
+        }
+
+        private Shape parse() {
+            shape = new Shape();
+            char command = 0;
+            while (true) {
+                skipSeparators();
+                if (index >= data.length()) {
+                    break;
+                }
+                char c = data.charAt(index);
+                if (Character.isLetter(c) && c != 'e' && c != 'E') {
+                    command = c;
+                    index++;
+                } else if (command == 0) {
+                    break;
+                }
+                try {
+                    if (!segment(command)) {
+                        break;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // like a browser, render the path up to the first error
+                    break;
+                }
+                // coordinates after a moveto are implicit linetos
+                if (command == 'M') {
+                    command = 'L';
+                } else if (command == 'm') {
+                    command = 'l';
+                }
+            }
+            close();
+            return shape.rings.isEmpty() ? null : shape;
+        }
+
+        private boolean segment(char command) {
+            boolean relative = Character.isLowerCase(command);
+            double ox = relative ? x : 0;
+            double oy = relative ? y : 0;
+            char upper = Character.toUpperCase(command);
+            switch (upper) {
+                case 'M':
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    close();
+                    x = ox + number();
+                    y = oy + number();
+                    startX = x;
+                    startY = y;
+                    ring = new Ring();
+                    ring.add(transform, x, y);
+                    break;
+                case 'L':
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    lineTo(ox + number(), oy + number());
+                    break;
+                case 'H':
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    lineTo(ox + number(), y);
+                    break;
+                case 'V':
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    lineTo(x, oy + number());
+                    break;
+                case 'C':
+                case 'S': {
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    double x1;
+                    double y1;
+                    if (upper == 'C') {
+                        x1 = ox + number();
+                        y1 = oy + number();
+                    } else if (previous == 'C' || previous == 'S') {
+                        x1 = 2 * x - controlX;
+                        y1 = 2 * y - controlY;
+                    } else {
+                        x1 = x;
+                        y1 = y;
+                    }
+                    double x2 = ox + number();
+                    double y2 = oy + number();
+                    double x3 = ox + number();
+                    double y3 = oy + number();
+                    cubicTo(x1, y1, x2, y2, x3, y3);
+                    controlX = x2;
+                    controlY = y2;
+                    break;
+                }
+                case 'Q':
+                case 'T': {
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    double x1;
+                    double y1;
+                    if (upper == 'Q') {
+                        x1 = ox + number();
+                        y1 = oy + number();
+                    } else if (previous == 'Q' || previous == 'T') {
+                        x1 = 2 * x - controlX;
+                        y1 = 2 * y - controlY;
+                    } else {
+                        x1 = x;
+                        y1 = y;
+                    }
+                    double x2 = ox + number();
+                    double y2 = oy + number();
+                    // a quadratic is the cubic with control points two thirds of the way to its control point
+                    cubicTo(x + 2.0 / 3.0 * (x1 - x), y + 2.0 / 3.0 * (y1 - y), x2 + 2.0 / 3.0 * (x1 - x2), y2 + 2.0 / 3.0 * (y1 - y2), x2, y2);
+                    controlX = x1;
+                    controlY = y1;
+                    break;
+                }
+                case 'A': {
+                    if (!hasNumber()) {
+                        return false;
+                    }
+                    double rx = Math.abs(number());
+                    double ry = Math.abs(number());
+                    double rotation = number();
+                    boolean largeArc = flag();
+                    boolean sweep = flag();
+                    arcTo(rx, ry, Math.toRadians(rotation), largeArc, sweep, ox + number(), oy + number());
+                    break;
+                }
+                case 'Z':
+                    close();
+                    x = startX;
+                    y = startY;
+                    break;
+                default:
+                    return false;
+            }
+            previous = upper;
+            return true;
+        }
+
+        private void ensureRing() {
+            if (ring == null) {
+                ring = new Ring();
+                ring.add(transform, x, y);
+                startX = x;
+                startY = y;
+            }
+        }
+
+        private void lineTo(double toX, double toY) {
+            ensureRing();
+            ring.add(transform, toX, toY);
+            x = toX;
+            y = toY;
+        }
+
+        private void cubicTo(double x1, double y1, double x2, double y2, double x3, double y3) {
+            ensureRing();
+            double[] t = transform;
+            flatten(ring.lastX(), ring.lastY(),
+                    t[0] * x1 + t[2] * y1 + t[4], t[1] * x1 + t[3] * y1 + t[5],
+                    t[0] * x2 + t[2] * y2 + t[4], t[1] * x2 + t[3] * y2 + t[5],
+                    t[0] * x3 + t[2] * y3 + t[4], t[1] * x3 + t[3] * y3 + t[5], 0);
+            x = x3;
+            y = y3;
+        }
+
+        // de Casteljau subdivision until the control polygon is within FLATNESS of the chord
+        private void flatten(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3, int depth) {
+            double slack = Math.hypot(x1 - x0, y1 - y0) + Math.hypot(x2 - x1, y2 - y1) + Math.hypot(x3 - x2, y3 - y2) - Math.hypot(x3 - x0, y3 - y0);
+            if (depth >= MAX_DEPTH || slack <= FLATNESS) {
+                ring.addTransformed(x3, y3);
+                return;
+            }
+            double x01 = (x0 + x1) / 2, y01 = (y0 + y1) / 2;
+            double x12 = (x1 + x2) / 2, y12 = (y1 + y2) / 2;
+            double x23 = (x2 + x3) / 2, y23 = (y2 + y3) / 2;
+            double x012 = (x01 + x12) / 2, y012 = (y01 + y12) / 2;
+            double x123 = (x12 + x23) / 2, y123 = (y12 + y23) / 2;
+            double xm = (x012 + x123) / 2, ym = (y012 + y123) / 2;
+            flatten(x0, y0, x01, y01, x012, y012, xm, ym, depth + 1);
+            flatten(xm, ym, x123, y123, x23, y23, x3, y3, depth + 1);
+        }
+
+        // endpoint to center parameterization from the SVG implementation notes
+        private void arcTo(double rx, double ry, double rotation, boolean largeArc, boolean sweep, double toX, double toY) {
+            if (rx == 0 || ry == 0 || (toX == x && toY == y)) {
+                lineTo(toX, toY);
+                return;
+            }
+            ensureRing();
+            double cos = Math.cos(rotation);
+            double sin = Math.sin(rotation);
+            double hx = (x - toX) / 2;
+            double hy = (y - toY) / 2;
+            double px = cos * hx + sin * hy;
+            double py = -sin * hx + cos * hy;
+
+            double lambda = (px * px) / (rx * rx) + (py * py) / (ry * ry);
+            if (lambda > 1) {
+                rx *= Math.sqrt(lambda);
+                ry *= Math.sqrt(lambda);
+            }
+            double numerator = rx * rx * ry * ry - rx * rx * py * py - ry * ry * px * px;
+            double denominator = rx * rx * py * py + ry * ry * px * px;
+            double root = Math.sqrt(Math.max(0, numerator / denominator)) * (largeArc == sweep ? -1 : 1);
+            double cpx = root * rx * py / ry;
+            double cpy = -root * ry * px / rx;
+            double cx = cos * cpx - sin * cpy + (x + toX) / 2;
+            double cy = sin * cpx + cos * cpy + (y + toY) / 2;
+
+            double start = Math.atan2((py - cpy) / ry, (px - cpx) / rx);
+            double end = Math.atan2((-py - cpy) / ry, (-px - cpx) / rx);
+            double delta = end - start;
+            if (sweep && delta < 0) {
+                delta += 2 * Math.PI;
+            } else if (!sweep && delta > 0) {
+                delta -= 2 * Math.PI;
+            }
+            arc(ring, transform, cx, cy, rx, ry, rotation, start, delta);
+            x = toX;
+            y = toY;
+        }
+
+        private void close() {
+            if (ring != null) {
+                shape.add(ring);
+                ring = null;
+            }
+        }
+
+        private void skipSeparators() {
+            while (index < data.length() && (Character.isWhitespace(data.charAt(index)) || data.charAt(index) == ',')) {
+                index++;
+            }
+        }
+
+        private boolean hasNumber() {
+            skipSeparators();
+            if (index >= data.length()) {
+                return false;
+            }
+            char c = data.charAt(index);
+            return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+        }
+
+        private double number() {
+            if (!hasNumber()) {
+                throw new IllegalArgumentException(String.format("Expected number at %d in path", index));
+            }
+            int start = index;
+            if (data.charAt(index) == '-' || data.charAt(index) == '+') {
+                index++;
+            }
+            boolean dot = false;
+            while (index < data.length()) {
+                char c = data.charAt(index);
+                if (c == '.' && !dot) {
+                    dot = true;
+                } else if (c < '0' || c > '9') {
+                    break;
+                }
+                index++;
+            }
+            if (index < data.length() && (data.charAt(index) == 'e' || data.charAt(index) == 'E')) {
+                int mark = index++;
+                if (index < data.length() && (data.charAt(index) == '-' || data.charAt(index) == '+')) {
+                    index++;
+                }
+                if (index < data.length() && Character.isDigit(data.charAt(index))) {
+                    while (index < data.length() && Character.isDigit(data.charAt(index))) {
+                        index++;
+                    }
+                } else {
+                    index = mark;
+                }
+            }
+            return Double.parseDouble(data.substring(start, index));
+        }
+
+        // arc flags may be packed without separators, as in "a1 1 0 01 5 5"
+        private boolean flag() {
+            skipSeparators();
+            if (index >= data.length() || (data.charAt(index) != '0' && data.charAt(index) != '1')) {
+                throw new IllegalArgumentException(String.format("Expected flag at %d in path", index));
+            }
+            return data.charAt(index++) == '1';
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.crazydays.mesh;
+
+import org.crazydays.stl.FacetSink;
+
+import java.util.Arrays;
+
+/*
+ * Shared vertex table plus three vertex ids per triangle. Facet normals are dropped, the
+ * indexed formats derive them from the winding.
+ */
+public class IndexedMesh implements FacetSink {
+    private final VertexIndex vertices;
+    private int[] triangles;
+    private int size;
+
+    public IndexedMesh() {
+        this.vertices = new VertexIndex();
+        this.triangles = new int[3 * 1024];
+        this.size = 0;
+    }
+
+    public VertexIndex getVertices() {
+        return vertices;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getA(int triangle) {
+        return triangles[triangle * 3];
+    }
+
+    public int getB(int triangle) {
+        return triangles[triangle * 3 + 1];
+    }
+
+    public int getC(int triangle) {
+        return triangles[triangle * 3 + 2];
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        int a = vertices.id(ax, ay, az);
+        int b = vertices.id(bx, by, bz);
+        int c = vertices.id(cx, cy, cz);
+        if (a == b || b == c || a == c) {
+            return;
+        }
+
+        if (triangles.length < (size + 1) * 3) {
+            triangles = Arrays.copyOf(triangles, triangles.length + (triangles.length >> 1) + 3);
+        }
+        triangles[size * 3] = a;
+        triangles[size * 3 + 1] = b;
+        triangles[size * 3 + 2] = c;
+        size++;
+    }
+}
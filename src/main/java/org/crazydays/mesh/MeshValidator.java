@@ -0,0 +1,286 @@
+package org.crazydays.mesh;
+
+import org.crazydays.stl.FacetSink;
+
+import java.io.PrintStream;
+import java.util.Properties;
+
+/*
+ * Checks that a triangle soup is a closed, consistently wound manifold. Vertices are matched on
+ * VertexIndex's quantized coordinates and every undirected edge lives in an open addressing table
+ * keyed by its two vertex ids packed into a long, with the count of each direction packed into
+ * the int value. A good edge is used exactly once in each direction. An edge used as often in one
+ * direction as in the other by more than two facets is pinched, two closed surfaces touch along
+ * it as where diagonal cells of a mask meet, and the mesh is still watertight. Pinched edges do
+ * not make a mesh invalid but are counted as a defect in a baseline, so they cannot grow unseen.
+ */
+public class MeshValidator implements FacetSink {
+    public final static double NORMAL_TOLERANCE = Math.cos(Math.toRadians(5.0));
+    public final static double MIN_AREA = 1e-9;
+
+    private final static int DIRECTION_BITS = 16;
+    private final static int DIRECTION_MASK = (1 << DIRECTION_BITS) - 1;
+    private final static int DIRECTION_LIMIT = DIRECTION_MASK >> 1;
+
+    private final VertexIndex vertices;
+    private final long[] recentKeys = new long[3];
+    private final int[] recentIds = { -1, -1, -1 };
+    private long[] keys;
+    private int[] counts;
+    private int edges;
+
+    private long facets;
+    private long degenerate;
+    private long zeroArea;
+    private long flippedNormals;
+    private long skewedNormals;
+
+    private boolean counted;
+    private long boundaryEdges;
+    private long nonManifoldEdges;
+    private long pinchedEdges;
+    private long inconsistentEdges;
+
+    public MeshValidator() {
+        this(1024);
+    }
+
+    public MeshValidator(int expectedFacets) {
+        int expectedEdges = Math.max(16, (int) Math.min(Integer.MAX_VALUE / 4, expectedFacets * 3L / 2));
+        this.vertices = new VertexIndex(Math.max(16, expectedFacets / 2));
+        int capacity = Integer.highestOneBit(expectedEdges * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        facets++;
+        counted = false;
+
+        long aKey = VertexIndex.key(ax, ay, az);
+        long bKey = VertexIndex.key(bx, by, bz);
+        long cKey = VertexIndex.key(cx, cy, cz);
+        int a = recent(aKey);
+        int b = recent(bKey);
+        int c = recent(cKey);
+        a = a >= 0 ? a : vertices.id(ax, ay, az);
+        b = b >= 0 ? b : vertices.id(bx, by, bz);
+        c = c >= 0 ? c : vertices.id(cx, cy, cz);
+        recentKeys[0] = aKey;
+        recentKeys[1] = bKey;
+        recentKeys[2] = cKey;
+        recentIds[0] = a;
+        recentIds[1] = b;
+        recentIds[2] = c;
+        if (a == b || b == c || c == a) {
+            degenerate++;
+            return;
+        }
+
+        // (b - a) x (c - a), the winding the stored normal should agree with
+        double ux = bx - ax, uy = by - ay, uz = bz - az;
+        double vx = cx - ax, vy = cy - ay, vz = cz - az;
+        double wx = uy * vz - uz * vy;
+        double wy = uz * vx - ux * vz;
+        double wz = ux * vy - uy * vx;
+        double length = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        if (length / 2 < MIN_AREA) {
+            zeroArea++;
+        } else {
+            double stored = Math.sqrt((double) nx * nx + (double) ny * ny + (double) nz * nz);
+            double cos = stored > 0 ? (nx * wx + ny * wy + nz * wz) / (stored * length) : 0;
+            if (cos < 0) {
+                flippedNormals++;
+            } else if (cos < NORMAL_TOLERANCE) {
+                skewedNormals++;
+            }
+        }
+
+        addEdge(a, b);
+        addEdge(b, c);
+        addEdge(c, a);
+    }
+
+    // neighbouring facets share vertices, checking the previous facet skips most table lookups
+    private int recent(long key) {
+        for (int i = 0; i < recentKeys.length; i++) {
+            if (recentIds[i] >= 0 && recentKeys[i] == key) {
+                return recentIds[i];
+            }
+        }
+        return -1;
+    }
+
+    private void addEdge(int from, int to) {
+        long key = from < to ? ((long) from << 32) | to : ((long) to << 32) | from;
+        int shift = from < to ? 0 : DIRECTION_BITS;
+
+        int mask = keys.length - 1;
+        int slot = VertexIndex.hash(key) & mask;
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                int direction = (counts[slot] >>> shift) & DIRECTION_MASK;
+                if (direction < DIRECTION_LIMIT) {
+                    counts[slot] += 1 << shift;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        counts[slot] = 1 << shift;
+        edges++;
+        if (edges * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new long[oldKeys.length * 2];
+        counts = new int[oldCounts.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = VertexIndex.hash(oldKeys[i]) & mask;
+                while (counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private void countEdges() {
+        if (counted) {
+            return;
+        }
+        boundaryEdges = 0;
+        nonManifoldEdges = 0;
+        pinchedEdges = 0;
+        inconsistentEdges = 0;
+        for (int count : counts) {
+            if (count == 0) {
+                continue;
+            }
+            int forward = count & DIRECTION_MASK;
+            int backward = count >>> DIRECTION_BITS;
+            int total = forward + backward;
+            if (total == 1) {
+                boundaryEdges++;
+            } else if (total > 2 && forward == backward) {
+                pinchedEdges++;
+            } else if (total > 2) {
+                nonManifoldEdges++;
+            } else if (forward != 1) {
+                inconsistentEdges++;
+            }
+        }
+        counted = true;
+    }
+
+    public long getFacets() {
+        return facets;
+    }
+
+    public int getVertices() {
+        return vertices.size();
+    }
+
+    public int getEdges() {
+        return edges;
+    }
+
+    public long getDegenerate() {
+        return degenerate;
+    }
+
+    public long getZeroArea() {
+        return zeroArea;
+    }
+
+    public long getFlippedNormals() {
+        return flippedNormals;
+    }
+
+    public long getSkewedNormals() {
+        return skewedNormals;
+    }
+
+    // edges used by a single facet
+    public long getBoundaryEdges() {
+        countEdges();
+        return boundaryEdges;
+    }
+
+    // edges shared by more than two facets, more of them running one way than the other
+    public long getNonManifoldEdges() {
+        countEdges();
+        return nonManifoldEdges;
+    }
+
+    // edges shared by more than two facets, half of them running each way
+    public long getPinchedEdges() {
+        countEdges();
+        return pinchedEdges;
+    }
+
+    // edges shared by two facets that both run it in the same direction
+    public long getInconsistentEdges() {
+        countEdges();
+        return inconsistentEdges;
+    }
+
+    public boolean isWatertight() {
+        return getBoundaryEdges() == 0 && getNonManifoldEdges() == 0 && getInconsistentEdges() == 0;
+    }
+
+    public boolean isValid() {
+        return isWatertight() && degenerate == 0 && zeroArea == 0 && flippedNormals == 0 && skewedNormals == 0;
+    }
+
+    /*
+     * The count of each kind of defect, saved as the baseline of a mesh that is open by design such
+     * as a mold or a negative.
+     */
+    public Properties getDefects() {
+        Properties defects = new Properties();
+        defects.setProperty("boundaryEdges", Long.toString(getBoundaryEdges()));
+        defects.setProperty("nonManifoldEdges", Long.toString(getNonManifoldEdges()));
+        defects.setProperty("pinchedEdges", Long.toString(getPinchedEdges()));
+        defects.setProperty("inconsistentEdges", Long.toString(getInconsistentEdges()));
+        defects.setProperty("degenerateFacets", Long.toString(degenerate));
+        defects.setProperty("zeroAreaFacets", Long.toString(zeroArea));
+        defects.setProperty("flippedNormals", Long.toString(flippedNormals));
+        defects.setProperty("skewedNormals", Long.toString(skewedNormals));
+        return defects;
+    }
+
+    // no kind of defect is more frequent than in the baseline, a kind it lacks must not occur at all
+    public boolean isWithin(Properties baseline) {
+        Properties defects = getDefects();
+        for (String name : defects.stringPropertyNames()) {
+            if (Long.parseLong(defects.getProperty(name)) > Long.parseLong(baseline.getProperty(name, "0").trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void print(PrintStream out) {
+        out.format("facets: %d vertices: %d edges: %d\n", facets, vertices.size(), edges);
+        out.format("\tboundary edges: %d\n", getBoundaryEdges());
+        out.format("\tnon-manifold edges: %d\n", getNonManifoldEdges());
+        out.format("\tpinched edges: %d\n", getPinchedEdges());
+        out.format("\tinconsistent edges: %d\n", getInconsistentEdges());
+        out.format("\tdegenerate facets: %d\n", degenerate);
+        out.format("\tzero area facets: %d\n", zeroArea);
+        out.format("\tflipped normals: %d\n", flippedNormals);
+        out.format("\tskewed normals: %d\n", skewedNormals);
+        out.format("\t%s\n", isValid() ? "valid" : "INVALID");
+    }
+}
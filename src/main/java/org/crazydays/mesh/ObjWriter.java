@@ -0,0 +1,45 @@
+package org.crazydays.mesh;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Wavefront OBJ, vertex ids are 1 based.
+ */
+public class ObjWriter {
+    private ObjWriter() {
+    }
+
+    public static void write(File file, IndexedMesh mesh, String name) throws IOException {
+        VertexIndex vertices = mesh.getVertices();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.US_ASCII), 1 << 16)) {
+            writer.write("# Blanker\n");
+            writer.write("o ");
+            writer.write(name);
+            writer.write('\n');
+            for (int i = 0; i < vertices.size(); i++) {
+                writer.write("v ");
+                writer.write(Float.toString(vertices.getX(i)));
+                writer.write(' ');
+                writer.write(Float.toString(vertices.getY(i)));
+                writer.write(' ');
+                writer.write(Float.toString(vertices.getZ(i)));
+                writer.write('\n');
+            }
+            for (int i = 0; i < mesh.size(); i++) {
+                writer.write("f ");
+                writer.write(Integer.toString(mesh.getA(i) + 1));
+                writer.write(' ');
+                writer.write(Integer.toString(mesh.getB(i) + 1));
+                writer.write(' ');
+                writer.write(Integer.toString(mesh.getC(i) + 1));
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.crazydays.mesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Binary little endian PLY with float coordinates and int vertex lists.
+ */
+public class PlyWriter {
+    public final static int BUFFER_SIZE = 1 << 16;
+
+    private PlyWriter() {
+    }
+
+    public static void write(File file, IndexedMesh mesh, String name) throws IOException {
+        VertexIndex vertices = mesh.getVertices();
+        String header = String.format("ply\nformat binary_little_endian 1.0\ncomment Blanker,name:%s\nelement vertex %d\nproperty float x\nproperty float y\nproperty float z\nelement face %d\nproperty list uchar int vertex_indices\nend_header\n",
+                name.replace('\n', ' '), vertices.size(), mesh.size());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            write(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+
+            for (int i = 0; i < vertices.size(); i++) {
+                if (buffer.remaining() < 12) {
+                    flush(channel, buffer);
+                }
+                buffer.putFloat(vertices.getX(i)).putFloat(vertices.getY(i)).putFloat(vertices.getZ(i));
+            }
+            for (int i = 0; i < mesh.size(); i++) {
+                if (buffer.remaining() < 13) {
+                    flush(channel, buffer);
+                }
+                buffer.put((byte) 3).putInt(mesh.getA(i)).putInt(mesh.getB(i)).putInt(mesh.getC(i));
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.crazydays.mesh;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * 3MF package: content types, the root relationship and a single mesh object in millimeters.
+ */
+public class ThreeMfWriter {
+    public final static String CONTENT_TYPES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+            + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+            + "<Default Extension=\"model\" ContentType=\"application/vnd.ms-package.3dmanufacturing-3dmodel+xml\"/>"
+            + "</Types>\n";
+    public final static String RELATIONSHIPS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+            + "<Relationship Target=\"/3D/3dmodel.model\" Id=\"rel0\" Type=\"http://schemas.microsoft.com/3dmanufacturing/2013/01/3dmodel\"/>"
+            + "</Relationships>\n";
+
+    private ThreeMfWriter() {
+    }
+
+    public static void write(File file, IndexedMesh mesh, String name) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16))) {
+            Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+
+            zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+            writer.write(CONTENT_TYPES);
+            writer.flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("_rels/.rels"));
+            writer.write(RELATIONSHIPS);
+            writer.flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("3D/3dmodel.model"));
+            writeModel(writer, mesh, name);
+            writer.flush();
+            zip.closeEntry();
+        }
+    }
+
+    private static void writeModel(Writer writer, IndexedMesh mesh, String name) throws IOException {
+        VertexIndex vertices = mesh.getVertices();
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<model unit=\"millimeter\" xml:lang=\"en-US\" xmlns=\"http://schemas.microsoft.com/3dmanufacturing/core/2015/02\">\n");
+        writer.write("<metadata name=\"Application\">Blanker</metadata>\n");
+        writer.write("<resources>\n<object id=\"1\" type=\"model\" name=\"");
+        writer.write(escape(name));
+        writer.write("\">\n<mesh>\n<vertices>\n");
+        for (int i = 0; i < vertices.size(); i++) {
+            writer.write("<vertex x=\"");
+            writer.write(Float.toString(vertices.getX(i)));
+            writer.write("\" y=\"");
+            writer.write(Float.toString(vertices.getY(i)));
+            writer.write("\" z=\"");
+            writer.write(Float.toString(vertices.getZ(i)));
+            writer.write("\"/>\n");
+        }
+        writer.write("</vertices>\n<triangles>\n");
+        for (int i = 0; i < mesh.size(); i++) {
+            writer.write("<triangle v1=\"");
+            writer.write(Integer.toString(mesh.getA(i)));
+            writer.write("\" v2=\"");
+            writer.write(Integer.toString(mesh.getB(i)));
+            writer.write("\" v3=\"");
+            writer.write(Integer.toString(mesh.getC(i)));
+            writer.write("\"/>\n");
+        }
+        writer.write("</triangles>\n</mesh>\n</object>\n</resources>\n");
+        writer.write("<build>\n<item objectid=\"1\"/>\n</build>\n</model>\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,112 @@
+package org.crazydays.mesh;
+
+import java.util.Arrays;
+
+/*
+ * Deduplicates vertices on quantized coordinates. The three quantized axes are packed into one
+ * long key and looked up in an open addressing table, so no objects are created per vertex.
+ */
+public class VertexIndex {
+    public final static float QUANTUM = 0.001f;
+    public final static int AXIS_BITS = 21;
+    public final static long AXIS_MASK = (1L << AXIS_BITS) - 1;
+    public final static long AXIS_LIMIT = 1L << (AXIS_BITS - 1);
+
+    private long[] keys;
+    private int[] ids;
+    private float[] coordinates;
+    private int size;
+
+    public VertexIndex() {
+        this(1024);
+    }
+
+    public VertexIndex(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.ids = new int[capacity];
+        this.coordinates = new float[Math.max(16, expected) * 3];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float getX(int id) {
+        return coordinates[id * 3];
+    }
+
+    public float getY(int id) {
+        return coordinates[id * 3 + 1];
+    }
+
+    public float getZ(int id) {
+        return coordinates[id * 3 + 2];
+    }
+
+    public static long key(float x, float y, float z) {
+        return (quantize(x) << (2 * AXIS_BITS)) | (quantize(y) << AXIS_BITS) | quantize(z);
+    }
+
+    private static long quantize(float value) {
+        long quantized = Math.round(value / (double) QUANTUM);
+        if (quantized <= -AXIS_LIMIT || quantized >= AXIS_LIMIT) {
+            throw new IllegalArgumentException(String.format("Coordinate out of range: %f", value));
+        }
+        return quantized & AXIS_MASK;
+    }
+
+    /*
+     * Returns the id of the vertex at these coordinates, adding it when it has not been seen.
+     */
+    public int id(float x, float y, float z) {
+        long key = key(x, y, z);
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (ids[slot] != 0) {
+            if (keys[slot] == key) {
+                return ids[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        keys[slot] = key;
+        ids[slot] = id + 1;
+        if (coordinates.length < size * 3) {
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        }
+        coordinates[id * 3] = x;
+        coordinates[id * 3 + 1] = y;
+        coordinates[id * 3 + 2] = z;
+
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    static int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new long[oldKeys.length * 2];
+        ids = new int[oldIds.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (ids[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+}
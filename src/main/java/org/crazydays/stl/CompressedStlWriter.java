@@ -0,0 +1,337 @@
+package org.crazydays.stl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Streams facets through a deflater running on its own thread into a .gz or .zip file. The facet
+ * count is only known on close, so the 84 byte STL header goes into an uncompressed deflate block
+ * at a fixed offset and is patched in place. Gzip output is two members, the patched header and
+ * the facets, which every gzip reader concatenates. Zip output is a single entry whose deflate
+ * stream starts with the header block, its CRC is combined from the header and facet CRCs.
+ *
+ * Only BUFFERS facet buffers exist, the generating thread waits when the deflater falls behind.
+ */
+public class CompressedStlWriter implements FacetSink, Closeable {
+    public final static int BUFFERS = 4;
+    public final static int BUFFER_SIZE = StlWriter.BUFFER_SIZE * 16;
+    public final static int LEVEL = Deflater.BEST_SPEED;
+
+    private final static int STL_HEADER_SIZE = StlWriter.HEADER_SIZE + 4;
+    private final static int STORED_BLOCK_SIZE = 5 + STL_HEADER_SIZE;
+    private final static int GZIP_HEADER_SIZE = 10;
+    private final static int ZIP_LOCAL_HEADER_SIZE = 30;
+    private final static long ZIP_LIMIT = 0xffffffffL;
+
+    private final FileChannel channel;
+    private final byte[] header;
+    private final byte[] entryName;
+    private final boolean zip;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS);
+    private final ByteBuffer end = ByteBuffer.allocate(0);
+    private final Thread compressor;
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer buffer;
+    private int count;
+    private long facetBytes;
+    private volatile long bytesWritten;
+    private volatile IOException failure;
+    private boolean closed;
+
+    public CompressedStlWriter(File file, Header header, boolean zip) throws IOException {
+        this.zip = zip;
+        this.header = header.getBytes();
+        this.entryName = entryName(file.getName()).getBytes(StandardCharsets.UTF_8);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        this.buffer = take(free);
+
+        // space for the header, filled in by close
+        try {
+            write(ByteBuffer.allocate(prefixSize()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.compressor = new Thread(this::compress, "stl-deflater");
+        this.compressor.setDaemon(true);
+        this.compressor.start();
+    }
+
+    // blank.zip and blank.stl.zip both hold blank.stl
+    static String entryName(String filename) {
+        String name = filename.toLowerCase().endsWith(".zip") ? filename.substring(0, filename.length() - 4) : filename;
+        return name.toLowerCase().endsWith(".stl") ? name : name + ".stl";
+    }
+
+    private int prefixSize() {
+        if (zip) {
+            return ZIP_LOCAL_HEADER_SIZE + entryName.length + STORED_BLOCK_SIZE;
+        }
+        return GZIP_HEADER_SIZE + STORED_BLOCK_SIZE + 8 + GZIP_HEADER_SIZE;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // compressed bytes on disk so far
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        if (buffer.remaining() < StlWriter.FACET_SIZE) {
+            try {
+                hand(buffer);
+                buffer = take(free);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+        buffer.putFloat(ax).putFloat(ay).putFloat(az);
+        buffer.putFloat(bx).putFloat(by).putFloat(bz);
+        buffer.putFloat(cx).putFloat(cy).putFloat(cz);
+        buffer.putShort(attributeByteCount);
+        count++;
+    }
+
+    private void hand(ByteBuffer buffer) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            full.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private ByteBuffer take(BlockingQueue<ByteBuffer> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException());
+        }
+    }
+
+    /*
+     * Runs on the compressor thread: deflates each full buffer, hands it back and appends the
+     * compressed bytes, until the end marker arrives.
+     */
+    private void compress() {
+        Deflater deflater = new Deflater(LEVEL, true);
+        byte[] output = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                ByteBuffer next = take(full);
+                if (next == end) {
+                    break;
+                }
+                next.flip();
+                crc.update(next.array(), 0, next.limit());
+                facetBytes += next.limit();
+                deflater.setInput(next.array(), 0, next.limit());
+                while (!deflater.needsInput()) {
+                    write(ByteBuffer.wrap(output, 0, deflater.deflate(output)));
+                }
+                next.clear();
+                free.add(next);
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                write(ByteBuffer.wrap(output, 0, deflater.deflate(output)));
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (UncheckedIOException e) {
+            failure = e.getCause();
+        } finally {
+            deflater.end();
+            if (failure != null) {
+                // let a waiting producer see the failure
+                full.clear();
+                free.offer(ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            bytesWritten += channel.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            hand(buffer);
+            hand(end);
+            compressor.join();
+            if (failure != null) {
+                throw failure;
+            }
+            if (zip) {
+                finishZip();
+            } else {
+                finishGzip();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private byte[] stlHeader() {
+        return ByteBuffer.allocate(STL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).put(header).putInt(count).array();
+    }
+
+    // a final or non-final deflate block holding the STL header as is
+    private void putStoredBlock(ByteBuffer out, byte[] stl, boolean last) {
+        out.put((byte) (last ? 1 : 0));
+        out.putShort((short) stl.length);
+        out.putShort((short) ~stl.length);
+        out.put(stl);
+    }
+
+    private void putGzipHeader(ByteBuffer out) {
+        out.put(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    private void finishGzip() throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue()).putInt((int) facetBytes).flip();
+        write(trailer);
+
+        byte[] stl = stlHeader();
+        CRC32 headerCrc = new CRC32();
+        headerCrc.update(stl);
+        ByteBuffer prefix = ByteBuffer.allocate(prefixSize()).order(ByteOrder.LITTLE_ENDIAN);
+        putGzipHeader(prefix);
+        putStoredBlock(prefix, stl, true);
+        prefix.putInt((int) headerCrc.getValue()).putInt(stl.length);
+        putGzipHeader(prefix);
+        prefix.flip();
+        channel.write(prefix, 0);
+    }
+
+    private void finishZip() throws IOException {
+        long size = STL_HEADER_SIZE + facetBytes;
+        long compressed = bytesWritten - ZIP_LOCAL_HEADER_SIZE - entryName.length;
+        if (size > ZIP_LIMIT || bytesWritten > ZIP_LIMIT) {
+            throw new IOException(String.format("%d bytes of STL is too large for zip, use .stl.gz", size));
+        }
+        byte[] stl = stlHeader();
+        CRC32 headerCrc = new CRC32();
+        headerCrc.update(stl);
+        int entryCrc = (int) combine(headerCrc.getValue(), crc.getValue(), facetBytes);
+
+        int modified = dosTime(LocalDateTime.now());
+        ByteBuffer local = ByteBuffer.allocate(prefixSize()).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(0x04034b50).putShort((short) 20).putShort((short) 0x0800).putShort((short) 8).putInt(modified);
+        local.putInt(entryCrc).putInt((int) compressed).putInt((int) size);
+        local.putShort((short) entryName.length).putShort((short) 0).put(entryName);
+        putStoredBlock(local, stl, false);
+        local.flip();
+        channel.write(local, 0);
+
+        long directoryOffset = bytesWritten;
+        ByteBuffer directory = ByteBuffer.allocate(46 + entryName.length + 22).order(ByteOrder.LITTLE_ENDIAN);
+        directory.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 0x0800).putShort((short) 8).putInt(modified);
+        directory.putInt(entryCrc).putInt((int) compressed).putInt((int) size);
+        directory.putShort((short) entryName.length).putShort((short) 0).putShort((short) 0);
+        directory.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).put(entryName);
+        int directorySize = directory.position();
+        directory.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1);
+        directory.putInt(directorySize).putInt((int) directoryOffset).putShort((short) 0);
+        directory.flip();
+        write(directory);
+    }
+
+    private static int dosTime(LocalDateTime time) {
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /*
+     * CRC-32 of two concatenated blocks from the CRCs of each, zlib's crc32_combine: the first CRC
+     * is advanced over length zero bytes by squaring the one zero bit operator.
+     */
+    static long combine(long crc1, long crc2, long length) {
+        if (length <= 0) {
+            return crc1;
+        }
+        long[] odd = new long[32];
+        long[] even = new long[32];
+
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length >>= 1;
+        } while (length != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -21,6 +21,14 @@ public class Facet implements Comparable<Facet>{
         this.attributeByteCount = attributeByteCount;
     }
 
+    public Facet(Normal normal, Vertex a, Vertex b, Vertex c, Integer attributeByteCount) {
+        this.normal = normal;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.attributeByteCount = attributeByteCount;
+    }
+
     private Normal calculateUnitNormal(Vertex a, Vertex b, Vertex c) {
         Vector v1 = new Vector(a, c);
         Vector v2 = new Vector(b, c);
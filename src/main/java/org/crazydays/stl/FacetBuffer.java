@@ -0,0 +1,115 @@
+package org.crazydays.stl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Packed facet storage, 12 floats (normal, a, b, c) and an attribute short per facet.
+ */
+public class FacetBuffer implements FacetSink {
+    public final static int FLOATS_PER_FACET = 12;
+    public final static int DEFAULT_CAPACITY = 1024;
+
+    private float[] values;
+    private short[] attributes;
+    private int size;
+
+    public FacetBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FacetBuffer(int capacity) {
+        this.values = new float[Math.max(1, capacity) * FLOATS_PER_FACET];
+        this.attributes = new short[Math.max(1, capacity)];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        if (size == attributes.length) {
+            grow();
+        }
+
+        int offset = size * FLOATS_PER_FACET;
+        values[offset] = nx;
+        values[offset + 1] = ny;
+        values[offset + 2] = nz;
+        values[offset + 3] = ax;
+        values[offset + 4] = ay;
+        values[offset + 5] = az;
+        values[offset + 6] = bx;
+        values[offset + 7] = by;
+        values[offset + 8] = bz;
+        values[offset + 9] = cx;
+        values[offset + 10] = cy;
+        values[offset + 11] = cz;
+        attributes[size] = attributeByteCount;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = attributes.length + (attributes.length >> 1) + 1;
+        values = Arrays.copyOf(values, capacity * FLOATS_PER_FACET);
+        attributes = Arrays.copyOf(attributes, capacity);
+    }
+
+    public Facet getFacet(int index) {
+        int offset = checkIndex(index) * FLOATS_PER_FACET;
+        return new Facet(
+                new Normal(values[offset], values[offset + 1], values[offset + 2]),
+                new Vertex(values[offset + 3], values[offset + 4], values[offset + 5]),
+                new Vertex(values[offset + 6], values[offset + 7], values[offset + 8]),
+                new Vertex(values[offset + 9], values[offset + 10], values[offset + 11]),
+                (int) attributes[index]
+        );
+    }
+
+    /*
+     * Encodes a single facet, the buffer is expected to be little endian.
+     */
+    public void write(ByteBuffer buffer, int index) {
+        int offset = checkIndex(index) * FLOATS_PER_FACET;
+        for (int i = 0; i < FLOATS_PER_FACET; i++) {
+            buffer.putFloat(values[offset + i]);
+        }
+        buffer.putShort(attributes[index]);
+    }
+
+    /*
+     * Decodes a single facet written by write and appends it, the buffer is expected to be little endian.
+     */
+    public void read(ByteBuffer buffer) {
+        addFacet(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                buffer.getShort());
+    }
+
+    public void writeTo(FacetSink sink) {
+        writeTo(sink, 0, size);
+    }
+
+    // facets [from, to) in order
+    public void writeTo(FacetSink sink, int from, int to) {
+        for (int index = from; index < to; index++) {
+            int offset = index * FLOATS_PER_FACET;
+            sink.addFacet(values[offset], values[offset + 1], values[offset + 2], values[offset + 3], values[offset + 4], values[offset + 5], values[offset + 6], values[offset + 7], values[offset + 8], values[offset + 9], values[offset + 10], values[offset + 11], attributes[index]);
+        }
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("index: %d size: %d", index, size));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,36 @@
+package org.crazydays.stl;
+
+public interface FacetSink {
+    void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount);
+
+    default void addFacet(Facet facet) {
+        Normal normal = facet.getNormal();
+        Vertex a = facet.getA();
+        Vertex b = facet.getB();
+        Vertex c = facet.getC();
+        addFacet(normal.getX(), normal.getY(), normal.getZ(), a.getX(), a.getY(), a.getZ(), b.getX(), b.getY(), b.getZ(), c.getX(), c.getY(), c.getZ(), facet.getAttributeByeCount().shortValue());
+    }
+
+    /*
+     * Same bytes as addFacet(new Facet(a, b, c, 0)) without the objects: the normal is
+     * (c - a) x (c - b) in float and each component is divided by one double length, as UnitNormal
+     * does.
+     */
+    default void addTriangle(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+        float ux = cx - ax;
+        float uy = cy - ay;
+        float uz = cz - az;
+        float vx = cx - bx;
+        float vy = cy - by;
+        float vz = cz - bz;
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        addFacet((float) (nx / length), (float) (ny / length), (float) (nz / length), ax, ay, az, bx, by, bz, cx, cy, cz, (short) 0);
+    }
+
+    default void addFacets(FacetBuffer facets) {
+        facets.writeTo(this);
+    }
+}
@@ -12,10 +12,12 @@ public class Header {
     }
 
     private String _getHeaderString() {
-        return String.format("%s,name:%s", application, name).substring(0, 80);
+        String header = String.format("%s,name:%s", application, name);
+        return header.length() > 80 ? header.substring(0, 80) : header;
     }
 
     public byte[] getBytes() {
-        return ByteBuffer.allocate(80).put(_getHeaderString().getBytes()).array();
+        byte[] bytes = _getHeaderString().getBytes();
+        return ByteBuffer.allocate(80).put(bytes, 0, Math.min(80, bytes.length)).array();
     }
 }
@@ -0,0 +1,138 @@
+package org.crazydays.stl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Binary STL has a fixed record size, so the file is sized up front from the planned facet count
+ * and facets are encoded in place into the mapping. Appended facets go to the end of what has been
+ * written, a generator that knows its facet count reserves a Region at that offset instead and
+ * fills it from its own thread. The file grows past the plan if it has to and is cut to the facets
+ * written on close.
+ */
+public class MappedStlWriter implements FacetSink, Closeable {
+    public final static int HEADER_SIZE = StlWriter.HEADER_SIZE + 4;
+    public final static int FACET_SIZE = StlWriter.FACET_SIZE;
+    public final static int MAX_REGION_FACETS = Integer.MAX_VALUE / FACET_SIZE;
+    // appending past the plan maps this many facets at a time
+    public final static int WINDOW_FACETS = 64 * 1024;
+
+    private final FileChannel channel;
+    private final byte[] header;
+    private final long planned;
+    private final Region end;
+
+    public MappedStlWriter(File file, Header header, long planned) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.header = header.getBytes();
+        this.planned = Math.max(0, planned);
+        this.end = new Region(0, Long.MAX_VALUE);
+        try {
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + this.planned * FACET_SIZE - 1);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getCount() {
+        return (int) end.next;
+    }
+
+    public long getBytesWritten() {
+        return HEADER_SIZE + end.next * FACET_SIZE;
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        end.addFacet(nx, ny, nz, ax, ay, az, bx, by, bz, cx, cy, cz, attributeByteCount);
+    }
+
+    /*
+     * The next facets of the file, to be filled by one other thread while appending carries on
+     * after them.
+     */
+    public Region reserve(long facets) {
+        Region region = new Region(end.next, end.next + facets);
+        end.next += facets;
+        end.window = null;
+        return region;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long count = end.next;
+            end.window = null;
+            if (count > 0xffffffffL) {
+                throw new IOException(String.format("Too many facets for binary STL: %d", count));
+            }
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(header).putInt((int) count).flip();
+            while (head.hasRemaining()) {
+                channel.write(head, head.position());
+            }
+            channel.truncate(HEADER_SIZE + count * FACET_SIZE);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Facets [first, last) of the file, mapped a window at a time as they are written.
+     */
+    public class Region implements FacetSink {
+        private final long first;
+        private final long last;
+        private long next;
+        private MappedByteBuffer window;
+
+        private Region(long first, long last) {
+            this.first = first;
+            this.last = last;
+            this.next = first;
+        }
+
+        public long getCount() {
+            return next - first;
+        }
+
+        public boolean isFull() {
+            return next == last;
+        }
+
+        @Override
+        public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+            if (window == null || !window.hasRemaining()) {
+                map();
+            }
+            window.putFloat(nx).putFloat(ny).putFloat(nz);
+            window.putFloat(ax).putFloat(ay).putFloat(az);
+            window.putFloat(bx).putFloat(by).putFloat(bz);
+            window.putFloat(cx).putFloat(cy).putFloat(cz);
+            window.putShort(attributeByteCount);
+            next++;
+        }
+
+        // up to the end of the region or the planned size, whichever comes first
+        private void map() {
+            if (next >= last) {
+                throw new IllegalStateException(String.format("Region of %d facets is full", last - first));
+            }
+            long facets = Math.min(last - next, Math.max(planned - next, WINDOW_FACETS));
+            try {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + next * FACET_SIZE, Math.min(facets, MAX_REGION_FACETS) * FACET_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.crazydays.stl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Binary STL through read only mapped regions, each region holds a whole number of facets so
+ * records are decoded with absolute gets and never straddle a boundary.
+ */
+public class StlReader implements Closeable {
+    public final static int HEADER_SIZE = MappedStlWriter.HEADER_SIZE;
+    public final static int FACET_SIZE = StlWriter.FACET_SIZE;
+    public final static int MAX_REGION_FACETS = MappedStlWriter.MAX_REGION_FACETS;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final int count;
+
+    public StlReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(String.format("Not a binary STL: %s", file));
+            }
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            long declared = head.order(ByteOrder.LITTLE_ENDIAN).getInt(StlWriter.HEADER_SIZE) & 0xffffffffL;
+            if (size != HEADER_SIZE + declared * FACET_SIZE || declared > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Not a binary STL: %s declares %d facets in %d bytes", file, declared, size));
+            }
+            this.count = (int) declared;
+
+            this.regions = new MappedByteBuffer[(int) ((count + (long) MAX_REGION_FACETS - 1) / MAX_REGION_FACETS)];
+            for (int i = 0; i < regions.length; i++) {
+                long first = (long) i * MAX_REGION_FACETS;
+                long facets = Math.min(MAX_REGION_FACETS, count - first);
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * FACET_SIZE, facets * FACET_SIZE);
+                regions[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void writeTo(FacetSink sink) {
+        writeTo(sink, 0, count);
+    }
+
+    // facets [from, to) in file order
+    public void writeTo(FacetSink sink, int from, int to) {
+        for (int index = from; index < to; index++) {
+            MappedByteBuffer region = regions[index / MAX_REGION_FACETS];
+            int offset = (index % MAX_REGION_FACETS) * FACET_SIZE;
+            sink.addFacet(
+                    region.getFloat(offset), region.getFloat(offset + 4), region.getFloat(offset + 8),
+                    region.getFloat(offset + 12), region.getFloat(offset + 16), region.getFloat(offset + 20),
+                    region.getFloat(offset + 24), region.getFloat(offset + 28), region.getFloat(offset + 32),
+                    region.getFloat(offset + 36), region.getFloat(offset + 40), region.getFloat(offset + 44),
+                    region.getShort(offset + 48));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
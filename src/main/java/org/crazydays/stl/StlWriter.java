@@ -0,0 +1,79 @@
+package org.crazydays.stl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Streams facets straight to disk, the triangle count is patched in on close.
+ */
+public class StlWriter implements FacetSink, Closeable {
+    public final static int HEADER_SIZE = 80;
+    public final static int FACET_SIZE = 50;
+    public final static int BUFFER_SIZE = FACET_SIZE * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private int count;
+    private long bytesWritten;
+
+    public StlWriter(File file, Header header) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.put(header.getBytes());
+        this.buffer.putInt(0);
+        this.count = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+        try {
+            if (buffer.remaining() < FACET_SIZE) {
+                flush();
+            }
+            buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+            buffer.putFloat(ax).putFloat(ay).putFloat(az);
+            buffer.putFloat(bx).putFloat(by).putFloat(bz);
+            buffer.putFloat(cx).putFloat(cy).putFloat(cz);
+            buffer.putShort(attributeByteCount);
+            count++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            buffer.putInt(count).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, HEADER_SIZE + buffer.position());
+            }
+            buffer.clear();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.crazydays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Manifest parsing and the summary a batch reports for each job.
+ */
+public class BatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quotedCellsKeepTheirCommas() {
+        assertArrayEquals(new String[]{"a,b.png", "", "say \"hi\"", "x"}, Batch.cells("\"a,b.png\",,\"say \"\"hi\"\"\",x"));
+    }
+
+    @Test
+    public void workersShareTheDefaultBudget() throws IOException {
+        File manifest = folder.newFile("budget.csv");
+        Files.write(manifest.toPath(), Arrays.asList(
+                "image,output,memoryBudget",
+                "a.png,a.stl,0",
+                "b.png,b.stl,64"));
+
+        List<Batch.Job> jobs = Batch.readManifest(manifest);
+        for (Batch.Job job : jobs) {
+            job.parse(4);
+        }
+        assertEquals(Runtime.getRuntime().maxMemory() / 4, jobs.get(0).getBlanker().getMemoryBudget());
+        assertEquals(64L * 1024 * 1024, jobs.get(1).getBlanker().getMemoryBudget());
+    }
+
+    @Test
+    public void unwrittenOutputFailsTheJob() throws IOException {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 16; y++) {
+                image.setRGB(x, y, 0xff000000);
+            }
+        }
+        File png = new File(folder.getRoot(), "black,white.png");
+        ImageIO.write(image, "png", png);
+
+        File written = new File(folder.getRoot(), "written.stl");
+        File unwritable = new File(new File(folder.getRoot(), "missing"), "unwritable.stl");
+        File manifest = folder.newFile("jobs.csv");
+        Files.write(manifest.toPath(), Arrays.asList(
+                "image,output,units,length,tube,diameter,imageZero",
+                String.format("\"%s\",%s,mm,20,7,19,2", png, written),
+                String.format("\"%s\",%s,mm,20,7,19,2", png, unwritable)));
+
+        List<Batch.Job> jobs = Batch.readManifest(manifest);
+        assertEquals(png.getPath(), jobs.get(0).getArgs()[1]);
+
+        Batch batch = new Batch(jobs, 2);
+        batch.run();
+        assertEquals(1, batch.printSummary());
+        assertNull(jobs.get(0).getError());
+        assertTrue(jobs.get(0).getFacets() > 0);
+        assertNull(jobs.get(0).getBlanker());
+        assertTrue(written.length() > 0);
+        assertNotNull(jobs.get(1).getError());
+        assertEquals(0, jobs.get(1).getFacets());
+    }
+}
@@ -0,0 +1,499 @@
+package org.crazydays;
+
+import org.crazydays.mesh.MeshValidator;
+import org.crazydays.stl.FacetSink;
+import org.crazydays.stl.StlReader;
+import org.crazydays.stl.StlWriter;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Runs each configuration through the serial in memory path and compares the facets against the
+ * SHA-256 stored in golden-digests.properties. The 80 byte header names the output file and is
+ * left out of the digest. A deliberate change to the geometry updates the stored digest with the
+ * value the failure reports. Each case also has a wall time and an allocation budget, the
+ * allocation is summed over every phase and pool thread through Metrics.
+ *
+ * Threaded, streaming, mapped and compressed output must match the reference byte for byte, as
+ * must section and facet count shards put back together. Merged output has different facets, so
+ * it must enclose the same box with the same surface area and signed volume. A grey relief of
+ * RELIEF_LEVELS depths must come out without open edges and hold to the same rules. A positive
+ * blank without a mold must pass verify, the others must pass against their own baseline.
+ */
+@RunWith(Parameterized.class)
+public class BlankerRegressionTest {
+    private final static String DIGESTS = "golden-digests.properties";
+    private final static int WIDTH = 80;
+    private final static int HEIGHT = 96;
+    private final static int THREADS = 4;
+    private final static int RELIEF_LEVELS = 16;
+    private final static double TOLERANCE = 1e-4;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private final static Map<String, Run> references = new HashMap<>();
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        return Arrays.asList(new Object[][]{
+                {"millimeters", configuration(Units.MILLIMETERS, 1.0f, true, 0.0f, 0.0f, 0.0f, true, 0.0f), 2000, 32},
+                {"inches", configuration(Units.INCHES, 1.0f / 25.4f, true, 0.0f, 0.0f, 0.0f, true, 0.0f), 2000, 32},
+                {"noCenter", configuration(Units.MILLIMETERS, 1.0f, false, 0.0f, 0.0f, 0.0f, true, 0.0f), 2000, 32},
+                {"negative", configuration(Units.MILLIMETERS, 1.0f, true, 0.0f, 0.0f, 0.0f, false, 0.0f), 2000, 32},
+                {"funnel", configuration(Units.MILLIMETERS, 1.0f, true, 25.0f, 0.0f, 0.0f, true, 0.0f), 2000, 32},
+                {"squareMold", configuration(Units.MILLIMETERS, 1.0f, true, 0.0f, 0.0f, 20.0f, true, 0.0f), 2000, 32},
+                {"roundMold", configuration(Units.MILLIMETERS, 1.0f, true, 0.0f, 30.0f, 0.0f, true, 0.0f), 2000, 64},
+                {"roundMoldFunnel", configuration(Units.MILLIMETERS, 1.0f, true, 25.0f, 30.0f, 0.0f, true, 0.0f), 2000, 64},
+                {"wallThickness", configuration(Units.MILLIMETERS, 1.0f, true, 0.0f, 30.0f, 0.0f, true, 2.0f), 2000, 64},
+                {"wallThicknessNoCenter", configuration(Units.MILLIMETERS, 1.0f, false, 0.0f, 30.0f, 0.0f, true, 2.0f), 2000, 64},
+        });
+    }
+
+    private final String name;
+    private final BlankConfiguration configuration;
+    private final long maxMillis;
+    private final long maxAllocatedMegabytes;
+
+    public BlankerRegressionTest(String name, BlankConfiguration configuration, long maxMillis, long maxAllocatedMegabytes) {
+        this.name = name;
+        this.configuration = configuration;
+        this.maxMillis = maxMillis;
+        this.maxAllocatedMegabytes = maxAllocatedMegabytes;
+    }
+
+    // scale converts the millimeter dimensions below to the configured units
+    private static BlankConfiguration configuration(Units units, float scale, boolean center, float funnel, float roundMold, float squareMold, boolean positive, float wallThickness) {
+        float imageZero = 2.0f;
+        float length = imageZero + (WIDTH + 2) * Blanker.Z_STEP;
+        BlankConfiguration configuration = new BlankConfiguration(units, length * scale, 7.0f * scale, 19.0f * scale, center,
+                funnel, roundMold, squareMold, positive, wallThickness);
+        configuration.setImageZero(imageZero * scale);
+        return configuration;
+    }
+
+    // seeded runs of black and white so every case engraves the same pattern
+    private static ImageMask mask() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(WIDTH * 31L + HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            boolean black = random.nextBoolean();
+            int x = 0;
+            while (x < WIDTH) {
+                for (int end = Math.min(WIDTH, x + 1 + random.nextInt(12)); x < end; x++) {
+                    image.setRGB(x, y, black ? 0xff000000 : 0xffffffff);
+                }
+                black = !black;
+            }
+        }
+        return ImageMask.fromImage(image, ImageMask.DEFAULT_THRESHOLD);
+    }
+
+    /*
+     * Seeded runs of grey, neighbouring runs can be any number of levels apart. The last columns
+     * stay white, the shaft closes its last row at the tube.
+     */
+    private static ImageMask relief() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(WIDTH * 37L + HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            int x = 0;
+            while (x < WIDTH) {
+                int grey = random.nextInt(256);
+                for (int end = Math.min(WIDTH, x + 1 + random.nextInt(12)); x < end; x++) {
+                    int value = x < WIDTH - 4 ? grey : 0xff;
+                    image.setRGB(x, y, 0xff000000 | value << 16 | value << 8 | value);
+                }
+            }
+        }
+        return ImageMask.fromImage(image, ImageMask.DEFAULT_THRESHOLD, RELIEF_LEVELS);
+    }
+
+    private Run run(String mode, Consumer<Blanker> setup) throws IOException {
+        return run(mode, ".stl", setup);
+    }
+
+    private Run run(String mode, String extension, Consumer<Blanker> setup) throws IOException {
+        return run(mode, extension, mask(), setup);
+    }
+
+    private Run run(String mode, String extension, ImageMask mask, Consumer<Blanker> setup) throws IOException {
+        File output = new File(folder.getRoot(), name + "-" + mode + extension);
+        Blanker blanker = new Blanker(configuration, output.getPath());
+        blanker.setImageMask(mask);
+        setup.accept(blanker);
+
+        long start = System.nanoTime();
+        blanker.generateStl();
+        blanker.writeStl();
+        long wallNanos = System.nanoTime() - start;
+
+        long allocated = 0;
+        for (Metrics.Phase phase : blanker.getMetrics().getPhases()) {
+            allocated += phase.getAllocatedBytes();
+        }
+        return new Run(output, Files.readAllBytes(output.toPath()), wallNanos, allocated);
+    }
+
+    private Run reference() throws IOException {
+        synchronized (references) {
+            Run reference = references.get(name);
+            if (reference == null) {
+                reference = run("reference", blanker -> blanker.setThreads(1));
+                references.put(name, reference);
+            }
+            return reference;
+        }
+    }
+
+    @Test
+    public void matchesGoldenDigest() throws IOException {
+        Properties digests = new Properties();
+        try (InputStream in = BlankerRegressionTest.class.getResourceAsStream(DIGESTS)) {
+            assertNotNull(DIGESTS, in);
+            digests.load(in);
+        }
+        assertEquals(name, digests.getProperty(name), reference().digest());
+    }
+
+    @Test
+    public void staysWithinBudget() throws IOException {
+        Run reference = reference();
+        assertTrue(String.format("%s took %d ms, budget %d ms", name, reference.wallNanos / 1000000, maxMillis),
+                reference.wallNanos / 1000000 <= maxMillis);
+        assertTrue(String.format("%s allocated %d bytes, budget %d MB", name, reference.allocated, maxAllocatedMegabytes),
+                reference.allocated <= maxAllocatedMegabytes << 20);
+    }
+
+    @Test
+    public void threadedIsByteIdentical() throws IOException {
+        assertArrayEquals(name, reference().facets(), run("threaded", blanker -> blanker.setThreads(THREADS)).facets());
+    }
+
+    @Test
+    public void streamingIsByteIdentical() throws IOException {
+        assertArrayEquals(name, reference().facets(), run("streaming", blanker -> blanker.setStreaming(true)).facets());
+    }
+
+    @Test
+    public void mappedIsByteIdentical() throws IOException {
+        assertArrayEquals(name, reference().facets(), run("mapped", blanker -> {
+            blanker.setMapped(true);
+            blanker.setThreads(THREADS);
+        }).facets());
+    }
+
+    @Test
+    public void gzipIsByteIdentical() throws IOException {
+        Run gzip = run("gzip", ".stl.gz", blanker -> blanker.setThreads(1));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.bytes))) {
+            byte[] stl = in.readAllBytes();
+            assertArrayEquals(name, reference().facets(), Arrays.copyOfRange(stl, StlWriter.HEADER_SIZE, stl.length));
+        }
+    }
+
+    @Test
+    public void zipIsByteIdentical() throws IOException {
+        Run zip = run("zip", ".zip", blanker -> blanker.setThreads(THREADS));
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.bytes))) {
+            assertEquals(name + "-zip.stl", in.getNextEntry().getName());
+            byte[] stl = in.readAllBytes();
+            assertArrayEquals(name, reference().facets(), Arrays.copyOfRange(stl, StlWriter.HEADER_SIZE, stl.length));
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void sectionShardsConcatenateToReference() throws IOException {
+        assertShardsConcatenate("sections", ShardWriter.Mode.SECTION, 5000);
+    }
+
+    @Test
+    public void facetShardsConcatenateToReference() throws IOException {
+        assertShardsConcatenate("facets", ShardWriter.Mode.FACETS, 5000);
+    }
+
+    @Test
+    public void slabShardsHoldTheReferenceFacets() throws IOException {
+        File output = new File(folder.getRoot(), name + "-slabs.stl");
+        Blanker blanker = new Blanker(configuration, output.getPath());
+        blanker.setImageMask(mask());
+        blanker.setThreads(THREADS);
+        blanker.setShards(ShardWriter.Mode.SLAB, 5000);
+        blanker.generateStl();
+        blanker.writeStl();
+
+        // slabs regroup the facets, so compare them in order of their bytes
+        List<ByteBuffer> facets = new ArrayList<>();
+        for (ShardWriter.Shard shard : blanker.getShards()) {
+            assertTrue(name + " shard too large", shard.getFacets() <= 5000);
+            byte[] bytes = Files.readAllBytes(shard.getFile().toPath());
+            facets.addAll(records(bytes, StlWriter.HEADER_SIZE + 4));
+        }
+        List<ByteBuffer> expected = records(reference().facets(), 4);
+        Collections.sort(facets);
+        Collections.sort(expected);
+        assertEquals(name, expected, facets);
+    }
+
+    private static List<ByteBuffer> records(byte[] bytes, int offset) {
+        List<ByteBuffer> records = new ArrayList<>();
+        for (int record = offset; record < bytes.length; record += StlWriter.FACET_SIZE) {
+            records.add(ByteBuffer.wrap(bytes, record, StlWriter.FACET_SIZE).slice());
+        }
+        return records;
+    }
+
+    private void assertShardsConcatenate(String mode, ShardWriter.Mode shardMode, int shardFacets) throws IOException {
+        File output = new File(folder.getRoot(), name + "-" + mode + ".stl");
+        Blanker blanker = new Blanker(configuration, output.getPath());
+        blanker.setImageMask(mask());
+        blanker.setThreads(THREADS);
+        blanker.setShards(shardMode, shardFacets);
+        blanker.generateStl();
+        blanker.writeStl();
+
+        ByteArrayOutputStream facets = new ByteArrayOutputStream();
+        int count = 0;
+        for (ShardWriter.Shard shard : blanker.getShards()) {
+            assertTrue(name + " shard too large", shard.getFacets() <= shardFacets);
+            byte[] bytes = Files.readAllBytes(shard.getFile().toPath());
+            facets.write(bytes, StlWriter.HEADER_SIZE + 4, bytes.length - StlWriter.HEADER_SIZE - 4);
+            count += shard.getFacets();
+        }
+        byte[] expected = reference().facets();
+        assertEquals(name, ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN).getInt(), count);
+        assertArrayEquals(name, Arrays.copyOfRange(expected, 4, expected.length), facets.toByteArray());
+    }
+
+    @Test
+    public void planMatchesFacetCount() throws IOException {
+        File output = new File(folder.getRoot(), name + "-plan.stl");
+        Blanker blanker = new Blanker(configuration, output.getPath());
+        blanker.setImageMask(mask());
+        blanker.setMemoryBudget(Long.MAX_VALUE);
+        blanker.generateStl();
+        blanker.writeStl();
+
+        Plan bound = blanker.getPlan();
+        Plan counted = blanker.countedPlan();
+        assertTrue(name + " below bound", bound.getMinFacets() <= blanker.getFacetCount());
+        assertTrue(name + " above bound", bound.getMaxFacets() >= blanker.getFacetCount());
+        assertTrue(name + " not exact", counted.isExact());
+        assertEquals(name, blanker.getFacetCount(), counted.getMaxFacets());
+        assertEquals(name, output.length(), counted.getOutputBytes());
+    }
+
+    @Test
+    public void overBudgetStreamsSameBytes() throws IOException {
+        Blanker planned = new Blanker(configuration, new File(folder.getRoot(), name + "-planned.stl").getPath());
+        planned.setImageMask(mask());
+        planned.setMemoryBudget(Long.MAX_VALUE);
+        planned.generateStl();
+        long inMemory = planned.countedPlan().getPeakHeap();
+
+        Run streamed = run("budget", blanker -> blanker.setMemoryBudget(inMemory - 1));
+        assertArrayEquals(name, reference().facets(), streamed.facets());
+    }
+
+    @Test
+    public void mergedIsGeometricallyEqual() throws IOException {
+        Run reference = reference();
+        Run merged = run("merged", blanker -> blanker.setMerge(true));
+        assertTrue(name + " merged into more facets", merged.bytes.length <= reference.bytes.length);
+
+        Geometry expected = Geometry.of(reference.file);
+        Geometry actual = Geometry.of(merged.file);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(name + " bounds", expected.bounds[i], actual.bounds[i], 0.0);
+        }
+        assertEquals(name + " area", expected.area, actual.area, expected.area * TOLERANCE);
+        assertEquals(name + " volume", expected.volume, actual.volume, Math.abs(expected.volume) * TOLERANCE);
+    }
+
+    @Test
+    public void reliefIsClosedAndPlanned() throws IOException {
+        File output = new File(folder.getRoot(), name + "-relief.stl");
+        Blanker blanker = new Blanker(configuration, output.getPath());
+        blanker.setImageMask(relief());
+        blanker.setVerify(true);
+        blanker.generateStl();
+        blanker.writeStl();
+
+        // diagonal corners share an edge between four walls, as on a black and white mask, and
+        // molds and negatives meet the shaft with T-junctions, so only plain blanks are closed
+        MeshValidator validator = blanker.getValidator();
+        if (configuration.isPositive() && !configuration.isRoundMold() && !configuration.isSquareMold()) {
+            assertEquals(name + " boundary edges", 0, validator.getBoundaryEdges());
+            assertEquals(name + " degenerate facets", 0, validator.getDegenerate() + validator.getZeroArea());
+        }
+        assertEquals(name + " inconsistent edges", 0, validator.getInconsistentEdges());
+        assertEquals(name + " flipped normals", 0, validator.getFlippedNormals());
+        assertEquals(name, blanker.getFacetCount(), blanker.countedPlan().getMaxFacets());
+    }
+
+    @Test
+    public void blankVerifies() throws IOException {
+        Blanker blanker = verified("verified", null, false);
+        MeshValidator validator = blanker.getValidator();
+        assertEquals(name, validator.isValid(), blanker.isVerified());
+        if (configuration.isPositive() && !configuration.isRoundMold() && !configuration.isSquareMold()) {
+            assertTrue(name + " valid", validator.isValid());
+        }
+
+        // a missing baseline is only written for a valid mesh, an open one has to record it
+        File baseline = new File(folder.getRoot(), name + "-baseline.properties");
+        assertEquals(name + " missing baseline", validator.isValid(), verified("baseline-missing", baseline, false).isVerified());
+        assertEquals(name + " baseline written", validator.isValid(), baseline.exists());
+        assertTrue(name + " baseline recorded", verified("baseline-recorded", baseline, true).isVerified());
+        assertTrue(name + " baseline", verified("baseline", baseline, false).isVerified());
+
+        // a baseline without defects also counts pinched edges against a valid mesh
+        File closed = new File(folder.getRoot(), name + "-closed.properties");
+        try (OutputStream out = new FileOutputStream(closed)) {
+            new Properties().store(out, null);
+        }
+        assertEquals(name + " closed baseline", validator.isValid() && validator.getPinchedEdges() == 0, verified("closed", closed, false).isVerified());
+    }
+
+    private Blanker verified(String mode, File baseline, boolean record) {
+        Blanker blanker = new Blanker(configuration, new File(folder.getRoot(), name + "-" + mode + ".stl").getPath());
+        blanker.setImageMask(mask());
+        blanker.setVerify(true);
+        blanker.setVerifyBaseline(baseline);
+        blanker.setRecordBaseline(record);
+        blanker.generateStl();
+        blanker.writeStl();
+        assertNotNull(name + " " + mode, blanker.getValidator());
+        return blanker;
+    }
+
+    @Test
+    public void reliefThreadedIsByteIdentical() throws IOException {
+        Run relief = run("relief-serial", ".stl", relief(), blanker -> blanker.setThreads(1));
+        assertArrayEquals(name, relief.facets(), run("relief-threaded", ".stl", relief(), blanker -> blanker.setThreads(THREADS)).facets());
+    }
+
+    @Test
+    public void reliefMergedIsGeometricallyEqual() throws IOException {
+        Run relief = run("relief-reference", ".stl", relief(), blanker -> blanker.setThreads(1));
+        Run merged = run("relief-merged", ".stl", relief(), blanker -> blanker.setMerge(true));
+        assertTrue(name + " merged into more facets", merged.bytes.length <= relief.bytes.length);
+
+        Geometry expected = Geometry.of(relief.file);
+        Geometry actual = Geometry.of(merged.file);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(name + " bounds", expected.bounds[i], actual.bounds[i], 0.0);
+        }
+        assertEquals(name + " area", expected.area, actual.area, expected.area * TOLERANCE);
+        assertEquals(name + " volume", expected.volume, actual.volume, Math.abs(expected.volume) * TOLERANCE);
+    }
+
+    private static class Run {
+        private final File file;
+        private final byte[] bytes;
+        private final long wallNanos;
+        private final long allocated;
+
+        private Run(File file, byte[] bytes, long wallNanos, long allocated) {
+            this.file = file;
+            this.bytes = bytes;
+            this.wallNanos = wallNanos;
+            this.allocated = allocated;
+        }
+
+        // facet count and records without the header
+        private byte[] facets() {
+            return Arrays.copyOfRange(bytes, StlWriter.HEADER_SIZE, bytes.length);
+        }
+
+        private String digest() {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(facets())) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /*
+     * Bounding box, surface area and the signed volume under the surface. Area and volume are
+     * integrals over the surface, so any facets that tile the same surface give the same values.
+     */
+    private static class Geometry implements FacetSink {
+        private final float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        private double area;
+        private double volume;
+
+        private static Geometry of(File file) throws IOException {
+            Geometry geometry = new Geometry();
+            try (StlReader reader = new StlReader(file)) {
+                reader.writeTo(geometry);
+            }
+            return geometry;
+        }
+
+        @Override
+        public void addFacet(float nx, float ny, float nz, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz, short attributeByteCount) {
+            include(ax, ay, az);
+            include(bx, by, bz);
+            include(cx, cy, cz);
+
+            double ux = bx - ax, uy = by - ay, uz = bz - az;
+            double vx = cx - ax, vy = cy - ay, vz = cz - az;
+            double wx = uy * vz - uz * vy;
+            double wy = uz * vx - ux * vz;
+            double wz = ux * vy - uy * vx;
+            area += Math.sqrt(wx * wx + wy * wy + wz * wz) / 2;
+            volume += (ax * wx + ay * wy + az * wz) / 6;
+        }
+
+        private void include(float x, float y, float z) {
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.min(bounds[2], z);
+            bounds[3] = Math.max(bounds[3], x);
+            bounds[4] = Math.max(bounds[4], y);
+            bounds[5] = Math.max(bounds[5], z);
+        }
+    }
+}
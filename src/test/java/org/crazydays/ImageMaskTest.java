@@ -0,0 +1,42 @@
+package org.crazydays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Darkness is the luma of a pixel, for relief levels and for the threshold alike.
+ */
+public class ImageMaskTest {
+    @Test
+    public void greyIsItsOwnLuma() {
+        for (int value = 0; value < 256; value++) {
+            assertEquals(value, ImageMask.luma(0xff000000 | value << 16 | value << 8 | value));
+        }
+    }
+
+    @Test
+    public void blueIsDeeperThanGreen() {
+        assertEquals(13, ImageMask.level(0xff0000ff, 16));
+        assertEquals(6, ImageMask.level(0xff00ff00, 16));
+        assertEquals(11, ImageMask.level(0xffff0000, 16));
+        assertEquals(0, ImageMask.level(0x000000ff, 16));
+    }
+
+    @Test
+    public void zeroThresholdOnlyAcceptsPureBlack() {
+        assertTrue(ImageMask.isBlack(0xff000000, 0));
+        assertFalse(ImageMask.isBlack(0xff010000, 0));
+        assertFalse(ImageMask.isBlack(0xff000004, 0));
+    }
+
+    @Test
+    public void thresholdComparesLuma() {
+        assertTrue(ImageMask.isBlack(0xff0000ff, 30));
+        assertFalse(ImageMask.isBlack(0xff0000ff, 29));
+        assertFalse(ImageMask.isBlack(0xff00ff00, 128));
+        assertFalse(ImageMask.isBlack(0xfe000000, 255));
+    }
+}
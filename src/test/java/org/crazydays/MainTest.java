@@ -0,0 +1,59 @@
+package org.crazydays;
+
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Options that would hang or crash generation are turned away by the parser.
+ */
+public class MainTest {
+    private static void assertRejected(String option, String value) {
+        try {
+            Main.createParser("blanker").parseArgs(new String[]{option, value});
+            fail(option + " " + value + " was accepted");
+        } catch (ArgumentParserException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(option));
+        }
+    }
+
+    @Test
+    public void rejectsNegativeZStep() {
+        assertRejected("--zStep", "-0.05");
+    }
+
+    @Test
+    public void rejectsZeroZStep() {
+        assertRejected("--zStep", "0");
+    }
+
+    @Test
+    public void rejectsNonFiniteZStep() {
+        assertRejected("--zStep", "NaN");
+        assertRejected("--zStep", "Infinity");
+    }
+
+    @Test
+    public void rejectsNegativeRotationSteps() {
+        assertRejected("--rotationSteps", "-1");
+    }
+
+    @Test
+    public void acceptsResolution() throws ArgumentParserException {
+        assertEquals(0.1f, Main.createParser("blanker").parseArgs(new String[]{"--zStep", "0.1"}).getFloat("zStep"), 0.0f);
+        assertEquals(0, (int) Main.createParser("blanker").parseArgs(new String[]{"--rotationSteps", "0"}).getInt("rotationSteps"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configurationRejectsZeroZStep() {
+        new BlankConfiguration(Units.MILLIMETERS, 20, 7, 19, true, 0, 0, 0, true, 0).setZStep(0.0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configurationRejectsNegativeRotationSteps() {
+        new BlankConfiguration(Units.MILLIMETERS, 20, 7, 19, true, 0, 0, 0, true, 0).setRotationSteps(-1);
+    }
+}
@@ -0,0 +1,97 @@
+package org.crazydays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/*
+ * Requests may only name readable images below the image root, and may not pick their own thread
+ * count or a grid over the server's limit.
+ */
+public class ServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Server server;
+
+    @Before
+    public void start() throws IOException {
+        File root = folder.newFolder("images");
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(4, 4, 0xff000000);
+        ImageIO.write(image, "png", new File(root, "blank.png"));
+        ImageIO.write(image, "png", folder.newFile("outside.png"));
+
+        Files.write(new File(root, "broken.png").toPath(), "not a png".getBytes(StandardCharsets.UTF_8));
+
+        server = new Server(new InetSocketAddress("127.0.0.1", 0), 1, 1, 1, root, 1000000);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop();
+    }
+
+    private int post(String image) throws IOException {
+        return post(image, "");
+    }
+
+    private int post(String image, String options) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + "/blank").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(String.format("{\"image\": \"%s\", \"units\": \"mm\", \"length\": \"20\", \"tube\": \"7\", \"diameter\": \"19\", \"imageZero\": \"2\"%s}",
+                    image.replace("\\", "\\\\"), options).getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    @Test
+    public void servesImagesBelowTheRoot() throws IOException {
+        assertEquals(200, post("blank.png"));
+        assertNotNull(server.image("blank.png"));
+    }
+
+    @Test
+    public void refusesImagesOutsideTheRoot() throws IOException {
+        assertEquals(403, post("../outside.png"));
+        assertEquals(403, post("sub/../../outside.png"));
+        assertNull(server.image(".."));
+        assertNull(server.image("."));
+    }
+
+    @Test
+    public void missingAndBrokenImagesAreClientErrors() throws IOException {
+        assertEquals(404, post("missing.png"));
+        assertEquals(400, post("broken.png"));
+    }
+
+    @Test
+    public void threadsAndLargeGridsAreRefused() throws IOException {
+        assertEquals(400, post("blank.png", ", \"threads\": \"64\""));
+        assertEquals(400, post("blank.png", ", \"rotationSteps\": \"100000\""));
+        assertEquals(400, post("blank.png", ", \"zStep\": \"0.00001\""));
+        assertEquals(200, post("blank.png", ", \"rotationSteps\": \"64\", \"zStep\": \"0.1\""));
+    }
+}
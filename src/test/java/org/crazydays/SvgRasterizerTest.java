@@ -0,0 +1,78 @@
+package org.crazydays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Fills are painted in document order through the raster threshold, and documents with a doctype
+ * are refused before any entity is resolved.
+ */
+public class SvgRasterizerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int files;
+
+    private File svg(String body) throws IOException {
+        File file = new File(folder.getRoot(), "test" + files++ + ".svg");
+        Files.write(file.toPath(), body.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private ImageMask rasterize(String shapes, int threshold) throws IOException {
+        return SvgRasterizer.read(svg("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 10 10\">" + shapes + "</svg>"))
+                .rasterize(10, 10, Blanker.Z_STEP, threshold);
+    }
+
+    @Test
+    public void refusesExternalEntities() throws IOException {
+        File secret = folder.newFile("secret.txt");
+        Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+        File file = svg("<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE svg [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]>\n"
+                + "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"10\" height=\"10\"><text>&secret;</text></svg>");
+        try {
+            SvgRasterizer.read(file);
+            fail("doctype accepted");
+        } catch (IOException e) {
+            assertFalse(e.getMessage(), e.getMessage().contains("secret\n"));
+        }
+    }
+
+    @Test
+    public void lightFillCutsOut() throws IOException {
+        ImageMask mask = rasterize("<rect width=\"10\" height=\"10\"/><rect x=\"2\" y=\"2\" width=\"6\" height=\"6\" fill=\"#fff\"/>", ImageMask.DEFAULT_THRESHOLD);
+        assertTrue(mask.isSet(0, 0));
+        assertFalse(mask.isSet(5, 5));
+    }
+
+    @Test
+    public void fillIsInherited() throws IOException {
+        ImageMask mask = rasterize("<g style=\"fill: white\"><rect width=\"10\" height=\"10\"/></g><g fill=\"none\"><rect width=\"5\" height=\"5\" fill=\"black\"/></g>", ImageMask.DEFAULT_THRESHOLD);
+        assertTrue(mask.isSet(1, 1));
+        assertFalse(mask.isSet(8, 8));
+    }
+
+    @Test
+    public void greyFollowsThreshold() throws IOException {
+        String grey = "<rect width=\"10\" height=\"10\" fill=\"rgb(100, 100, 100)\"/>";
+        assertFalse(rasterize(grey, ImageMask.DEFAULT_THRESHOLD).isSet(5, 5));
+        assertTrue(rasterize(grey, 128).isSet(5, 5));
+    }
+
+    @Test
+    public void translucentLightFillKeepsBelow() throws IOException {
+        ImageMask mask = rasterize("<rect width=\"10\" height=\"10\"/><rect width=\"10\" height=\"10\" fill=\"white\" fill-opacity=\"0.5\"/>", ImageMask.DEFAULT_THRESHOLD);
+        assertTrue(mask.isSet(5, 5));
+    }
+}
@@ -0,0 +1,54 @@
+package org.crazydays.mesh;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Two tetrahedra touching along one edge, which four facets share half in each direction.
+ */
+public class MeshValidatorTest {
+    private static void tetrahedron(MeshValidator validator, float[] a, float[] b, float[] c, float[] d) {
+        facet(validator, a, c, b);
+        facet(validator, a, b, d);
+        facet(validator, a, d, c);
+        facet(validator, b, c, d);
+    }
+
+    private static void facet(MeshValidator validator, float[] a, float[] b, float[] c) {
+        float ux = b[0] - a[0], uy = b[1] - a[1], uz = b[2] - a[2];
+        float vx = c[0] - a[0], vy = c[1] - a[1], vz = c[2] - a[2];
+        validator.addFacet(uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx,
+                a[0], a[1], a[2], b[0], b[1], b[2], c[0], c[1], c[2], (short) 0);
+    }
+
+    private static MeshValidator pinched() {
+        MeshValidator validator = new MeshValidator();
+        float[] origin = {0, 0, 0};
+        float[] x = {1, 0, 0};
+        tetrahedron(validator, origin, x, new float[]{0, 1, 0}, new float[]{0, 0, 1});
+        tetrahedron(validator, origin, x, new float[]{0, -1, 0}, new float[]{0, 0, -1});
+        return validator;
+    }
+
+    @Test
+    public void pinchedEdgeIsWatertight() {
+        MeshValidator validator = pinched();
+        assertEquals(0, validator.getBoundaryEdges());
+        assertEquals(0, validator.getNonManifoldEdges());
+        assertEquals(1, validator.getPinchedEdges());
+        assertTrue(validator.isValid());
+    }
+
+    @Test
+    public void pinchedEdgesAreKeptInTheBaseline() {
+        MeshValidator validator = pinched();
+        assertEquals("1", validator.getDefects().getProperty("pinchedEdges"));
+        assertTrue(validator.isWithin(validator.getDefects()));
+        assertFalse(validator.isWithin(new Properties()));
+    }
+}